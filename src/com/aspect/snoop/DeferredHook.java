@@ -0,0 +1,69 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop;
+
+/**
+ * A hook on a class that hasn't been loaded yet. It's kept by name until
+ * the class shows up, at which point the agent instruments the class as
+ * it's defined and the hook becomes a regular FunctionHook.
+ */
+public class DeferredHook {
+
+    private String className;
+    private String[] parameterTypeNames;
+    private String returnTypeName;
+
+    private FunctionHook hook;
+
+    /**
+     * @param hook the hook's settings. Its class, parameter and return types
+     *             are filled in once they can be resolved.
+     */
+    public DeferredHook(String className, String[] parameterTypeNames, String returnTypeName, FunctionHook hook) {
+        this.className = className;
+        this.parameterTypeNames = parameterTypeNames;
+        this.returnTypeName = returnTypeName;
+        this.hook = hook;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String[] getParameterTypeNames() {
+        return parameterTypeNames;
+    }
+
+    public String getReturnTypeName() {
+        return returnTypeName;
+    }
+
+    public FunctionHook getHook() {
+        return hook;
+    }
+
+    /**
+     * @return whether the hook's class has been loaded and the hook is
+     *         ready to be treated like any other
+     */
+    public boolean isResolved() {
+        return hook.getClazz() != null;
+    }
+}
@@ -239,7 +239,19 @@ public class FunctionHook {
         DontInterceptIf
     };
 
+    /**
+     * How many of the matching calls the hook actually fires for.
+     */
+    public enum Sampling {
+        None,       // every call
+        OneInN,     // 1 in every N calls, counted per thread
+        RateLimit,  // at most N calls per second
+        FirstN      // only the first N calls
+    };
+
     private Mode mode;
+    private Sampling sampling = Sampling.None;
+    private int samplingValue;
     private boolean enabled;
     protected List<Condition> conditions;
     private Class clazz;
@@ -247,6 +259,7 @@ public class FunctionHook {
     private Class[] parameterTypes;
     private Class returnType;
     private boolean applyToSubtypes;
+    private boolean wrapped;
 
     /**
      * @return the mode
@@ -332,6 +345,21 @@ public class FunctionHook {
         this.applyToSubtypes = applyToSubtypes;
     }
 
+    /**
+     * @return whether the hook code goes in a wrapper that calls a copy of
+     *         the original method, rather than into the method itself
+     */
+    public boolean isWrapped() {
+        return wrapped;
+    }
+
+    /**
+     * @param wrapped whether to put the hook code in a wrapper method
+     */
+    public void setWrapped(boolean wrapped) {
+        this.wrapped = wrapped;
+    }
+
     public boolean isConstructor() {
         if (methodName == null) {
             return true;
@@ -347,4 +375,39 @@ public class FunctionHook {
         this.returnType = returnType;
     }
 
+    /**
+     * @return the sampling
+     */
+    public Sampling getSampling() {
+        return sampling;
+    }
+
+    /**
+     * @param sampling the sampling to set
+     */
+    public void setSampling(Sampling sampling) {
+        this.sampling = sampling;
+    }
+
+    /**
+     * @return the N for the sampling mode
+     */
+    public int getSamplingValue() {
+        return samplingValue;
+    }
+
+    /**
+     * @param samplingValue the N for the sampling mode
+     */
+    public void setSamplingValue(int samplingValue) {
+        this.samplingValue = samplingValue;
+    }
+
+    /**
+     * @return whether the hook skips some of the calls that match it
+     */
+    public boolean isSampled() {
+        return sampling != null && sampling != Sampling.None && samplingValue > 0;
+    }
+
 }
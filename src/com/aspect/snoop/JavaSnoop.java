@@ -38,6 +38,21 @@ public class JavaSnoop extends SingleFrameApplication {
     public static final String JAD_PATH = "jad_path";
     public static final String LOAD_WAIT = "load_wait";
     public static final String LAST_DUMPED_DIR = "last_dumped_dir";
+    public static final String EVENT_BUFFER_SIZE = "event_buffer_size";
+    public static final String EVENT_OVERFLOW_POLICY = "event_overflow_policy";
+    public static final String EVENT_ARGUMENT_MAX_CHARS = "event_argument_max_chars";
+    public static final String CONSOLE_MAX_CHARS = "console_max_chars";
+    public static final String CONSOLE_MAX_LINES = "console_max_lines";
+    public static final String OUTPUT_FILE_MAX_SIZE = "output_file_max_size";
+    public static final String OUTPUT_FILE_BACKUPS = "output_file_backups";
+    public static final String STACK_TRACE_DEPTH = "stack_trace_depth";
+    public static final String STACK_TRACE_DEDUPE = "stack_trace_dedupe";
+    public static final String STACK_TABLE_LIMIT = "stack_table_limit";
+    public static final String CLASS_HISTORY_MEMORY = "class_history_memory";
+    public static final String CLASS_POOL_LIMIT = "class_pool_limit";
+    public static final String CLASS_BYTES_CACHE = "class_bytes_cache";
+    public static final String INSTRUMENT_THREADS = "instrument_threads";
+    public static final String INSTRUMENTED_CLASS_CACHE = "instrumented_class_cache";
 
     private static Properties props;
     private static String propFile;
@@ -49,9 +49,11 @@ public class SnoopSession implements Serializable {
     int guiDelay;
 
     List<FunctionHook> functionHooks;
+    List<DeferredHook> deferredHooks;
 
     String output;
     boolean clobberLookAndFeel;
+    boolean directBytecode;
 
     public SnoopSession() {
 
@@ -68,6 +70,7 @@ public class SnoopSession implements Serializable {
         guiDelay = defaultGuiDelay;
         clobberLookAndFeel = false;
         functionHooks = new ArrayList<FunctionHook>();
+        deferredHooks = new ArrayList<DeferredHook>();
 
     }
 
@@ -143,6 +146,20 @@ public class SnoopSession implements Serializable {
         this.functionHooks = functionHooks;
     }
 
+    /**
+     * @return the hooks on classes that haven't been loaded yet
+     */
+    public List<DeferredHook> getDeferredHooks() {
+        return deferredHooks;
+    }
+
+    /**
+     * @param deferredHooks the deferredHooks to set
+     */
+    public void setDeferredHooks(List<DeferredHook> deferredHooks) {
+        this.deferredHooks = deferredHooks;
+    }
+
     /**
      * @return the output
      */
@@ -238,4 +255,17 @@ public class SnoopSession implements Serializable {
         this.clobberLookAndFeel = b;
     }
 
+    /**
+     * @return whether the hooks' dispatch code is written into methods as
+     *         bytecode instead of being compiled from source. Scripts are
+     *         compiled from source either way.
+     */
+    public boolean isDirectBytecode() {
+        return directBytecode;
+    }
+
+    public void setDirectBytecode(boolean directBytecode) {
+        this.directBytecode = directBytecode;
+    }
+
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+import com.aspect.snoop.agent.SnoopAgent;
+import com.aspect.snoop.ui.JavaSnoopView;
+
+/**
+ * Writes events to the JavaSnoop console for hooks that ask for it.
+ */
+public class ConsoleEventSink implements EventSink {
+
+    public void write(InvocationEvent event, String text) {
+
+        JavaSnoopView view = SnoopAgent.getMainView();
+
+        if ( view != null && event.getHook().isOutputToConsole() ) {
+            view.showSnoopMessage(text);
+        }
+    }
+
+    public void flush() { }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+import com.aspect.snoop.JavaSnoop;
+import com.aspect.snoop.agent.AgentLogger;
+import com.aspect.snoop.agent.SnoopAgent;
+import com.aspect.snoop.agent.manager.MethodDescriptor;
+import com.aspect.snoop.agent.manager.MethodRegistry;
+import com.aspect.snoop.ui.JavaSnoopView;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gets hook output off the application threads. The dispatcher publishes
+ * an InvocationEvent into a bounded ring, and a single background thread
+ * formats each event and hands it to every registered sink, so a slow disk
+ * or a busy event dispatch thread never stalls the target application.
+ *
+ * When the ring is full, the overflow policy decides what happens: "drop"
+ * (the default) throws the new event away and counts it, "block" makes the
+ * application thread wait for room.
+ */
+public class EventPipeline {
+
+    public enum OverflowPolicy {
+        Drop,
+        Block
+    }
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final String nl = System.getProperty("line.separator");
+
+    private static final EventRing ring;
+    private static final OverflowPolicy policy;
+    private static final boolean dedupeStacks;
+
+    private static final List<EventSink> sinks = new CopyOnWriteArrayList<EventSink>();
+
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static final Thread consumer;
+    private static volatile boolean waiting = false;
+
+    static {
+
+        int size = JavaSnoop.getIntProperty(JavaSnoop.EVENT_BUFFER_SIZE);
+        ring = new EventRing(size > 0 ? size : DEFAULT_BUFFER_SIZE);
+
+        String p = JavaSnoop.getProperty(JavaSnoop.EVENT_OVERFLOW_POLICY);
+        policy = "block".equalsIgnoreCase(p) ? OverflowPolicy.Block : OverflowPolicy.Drop;
+
+        dedupeStacks = JavaSnoop.getBooleanProperty(JavaSnoop.STACK_TRACE_DEDUPE, true);
+
+        sinks.add(new ConsoleEventSink());
+        sinks.add(new FileEventSink());
+
+        consumer = new Thread(new Runnable() {
+            public void run() {
+                consume();
+            }
+        }, "JavaSnoop Event Pipeline");
+
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Called from the application threads.
+     */
+    public static void publish(InvocationEvent event) {
+
+        if ( ! ring.offer(event) ) {
+
+            // nobody's going to make room if the consumer has died
+            if ( policy != OverflowPolicy.Block || ! consumer.isAlive() ) {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            do {
+                LockSupport.unpark(consumer);
+                LockSupport.parkNanos(FULL_WAIT);
+                if ( ! consumer.isAlive() ) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            } while ( ! ring.offer(event) );
+        }
+
+        if ( waiting ) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public static void addSink(EventSink sink) {
+        sinks.add(sink);
+    }
+
+    public static void removeSink(EventSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * @return how many events have been thrown away because the ring was
+     *         full, since the agent started
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return how many events are waiting to be written
+     */
+    public static int getPendingCount() {
+        return ring.size();
+    }
+
+    public static OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    private static void consume() {
+
+        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        long reported = 0;
+
+        while ( true ) {
+
+            InvocationEvent event = ring.poll();
+
+            if ( event != null ) {
+                // one bad event mustn't stop everything after it
+                try {
+                    write(event, format(event, dateFormat));
+                } catch (Throwable t) {
+                    AgentLogger.error("Problem formatting hook event for method " + event.getMethodId(), t);
+                }
+                continue;
+            }
+
+            for ( EventSink sink : sinks ) {
+                try {
+                    sink.flush();
+                } catch (RuntimeException e) {
+                    AgentLogger.error("Problem flushing event sink", e);
+                }
+            }
+
+            long d = dropped.get();
+
+            if ( d != reported ) {
+                try {
+                    reportDropped(d - reported);
+                } catch (RuntimeException e) {
+                    AgentLogger.error("Problem reporting dropped events", e);
+                }
+                reported = d;
+            }
+
+            // publish() checks this after filling a slot, and we check the
+            // slot after setting this, so one of us always sees the other
+            waiting = true;
+
+            if ( ! ring.hasNext() ) {
+                LockSupport.parkNanos(IDLE_WAIT);
+            }
+
+            waiting = false;
+        }
+    }
+
+    private static void write(InvocationEvent event, String text) {
+        for ( EventSink sink : sinks ) {
+            try {
+                sink.write(event, text);
+            } catch (RuntimeException e) {
+                AgentLogger.error("Problem writing event to sink", e);
+            }
+        }
+    }
+
+    private static void reportDropped(long count) {
+
+        String message = count + " hook events were dropped because the event buffer (" + ring.capacity() + ") was full";
+
+        AgentLogger.warn(message);
+
+        JavaSnoopView view = SnoopAgent.getMainView();
+
+        if ( view != null ) {
+            view.showConsoleErrorMessage(message);
+        }
+    }
+
+    private static String format(InvocationEvent event, DateFormat dateFormat) {
+
+        MethodDescriptor method = MethodRegistry.get(event.getMethodId());
+        Class[] types = method != null ? method.getParameterTypes() : new Class[0];
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("[");
+        sb.append(dateFormat.format(new Date(event.getTimestamp())));
+        sb.append("] ");
+
+        String source = method != null
+                ? method.getClassName() + "." + method.getName() + "(" + join(types) + ")"
+                : "unknown method #" + event.getMethodId();
+
+        if ( event.getType() == InvocationEvent.Type.Parameters ) {
+
+            sb.append("Print parameter request from: " + source + ": " + nl);
+
+            String[] parameters = event.getArguments();
+
+            for (int i = 0; i < parameters.length; i++) {
+                String type = i < types.length ? types[i].getSimpleName() : "?";
+                sb.append("Parameter " + (i + 1) + " (type: " + type + "): " + parameters[i] + nl);
+            }
+
+        } else {
+
+            StackTraceElement[] frames = event.getStackTrace();
+
+            if ( ! dedupeStacks ) {
+
+                sb.append("Stack trace print request from: " + source + ":" + nl);
+                appendFrames(sb, frames);
+
+            } else {
+
+                StackTable.Entry entry = StackTable.record(event.getMethodId(), frames);
+
+                if ( entry.getCount() == 1 ) {
+                    sb.append("Stack trace print request from: " + source + " (stack #" + entry.getId() + "):" + nl);
+                    appendFrames(sb, frames);
+                } else {
+                    sb.append("Stack trace print request from: " + source + ": stack #" + entry.getId() + " (seen " + entry.getCount() + " times)" + nl);
+                }
+            }
+        }
+
+        sb.append(nl);
+
+        return sb.toString();
+    }
+
+    private static void appendFrames(StringBuilder sb, StackTraceElement[] frames) {
+        for (int i = 0; i < frames.length; i++) {
+            sb.append("\tat ").append(frames[i]).append(nl);
+        }
+    }
+
+    private static String join(Class[] types) {
+        StringBuilder sb = new StringBuilder(100);
+        for(int i=0;i<types.length;i++) {
+            sb.append(types[i].getSimpleName());
+            if ( i != types.length-1 ) {
+                sb.append(",");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring of events that any number of application threads can add
+ * to without locking, and that a single consumer thread drains.
+ *
+ * Producers claim a position by bumping the tail, then fill in the slot.
+ * The consumer treats an empty slot at the head as "not published yet", so
+ * a producer that's been descheduled between the two steps only delays the
+ * consumer, it never loses an event.
+ */
+class EventRing {
+
+    private final AtomicReferenceArray<InvocationEvent> slots;
+    private final int capacity;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    EventRing(int requested) {
+        int size = 1;
+        while ( size < requested ) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<InvocationEvent>(size);
+    }
+
+    /**
+     * Called from any thread.
+     * @return false if the ring is full
+     */
+    boolean offer(InvocationEvent event) {
+
+        while ( true ) {
+
+            long t = tail.get();
+
+            if ( t - head >= capacity ) {
+                return false;
+            }
+
+            if ( tail.compareAndSet(t, t + 1) ) {
+                slots.set((int)t & mask, event);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Only called from the consumer thread.
+     * @return the next event, or null if there isn't one ready
+     */
+    InvocationEvent poll() {
+
+        long h = head;
+        int index = (int)h & mask;
+        InvocationEvent event = slots.get(index);
+
+        if ( event == null ) {
+            return null;
+        }
+
+        slots.lazySet(index, null);
+        head = h + 1;
+
+        return event;
+    }
+
+    /**
+     * Only called from the consumer thread.
+     * @return true if the next slot has been published
+     */
+    boolean hasNext() {
+        return slots.get((int)head & mask) != null;
+    }
+
+    int size() {
+        return (int)(tail.get() - head);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
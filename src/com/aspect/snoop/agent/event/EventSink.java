@@ -0,0 +1,39 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+/**
+ * Somewhere formatted invocation events end up. Sinks are only ever called
+ * from the EventPipeline's thread.
+ */
+public interface EventSink {
+
+    /**
+     * @param event the event being written
+     * @param text the event, formatted for display
+     */
+    void write(InvocationEvent event, String text);
+
+    /**
+     * Called whenever the pipeline runs out of events, so sinks that buffer
+     * know it's a good time to push out what they have.
+     */
+    void flush();
+}
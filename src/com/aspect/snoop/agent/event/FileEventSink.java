@@ -0,0 +1,174 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+import com.aspect.snoop.JavaSnoop;
+import com.aspect.snoop.agent.AgentLogger;
+import com.aspect.snoop.agent.SnoopAgent;
+import com.aspect.snoop.agent.manager.HookSnapshot;
+import com.aspect.snoop.ui.JavaSnoopView;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Appends events to the output file of hooks that ask for it. Each file is
+ * opened once and kept open, and hooks that point at the same file share a
+ * writer. Buffered output is pushed to disk at least once a second while
+ * events are coming in, whenever the pipeline goes idle, and when the JVM
+ * shuts down. Files nobody has written to for a while are closed.
+ */
+public class FileEventSink implements EventSink {
+
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    private static final int DEFAULT_BACKUPS = 5;
+
+    private final long maxSize;
+    private final int backups;
+
+    // what the hooks call the file -> the writer
+    private final Map<String,OutputFileWriter> writersByName = new HashMap<String,OutputFileWriter>();
+
+    // canonical path -> the writer, so different names for one file share it
+    private final Map<String,OutputFileWriter> writersByPath = new HashMap<String,OutputFileWriter>();
+
+    private long lastFlush = System.currentTimeMillis();
+
+    public FileEventSink() {
+
+        this.maxSize = Math.max(0, JavaSnoop.getIntProperty(JavaSnoop.OUTPUT_FILE_MAX_SIZE));
+
+        String b = JavaSnoop.getProperty(JavaSnoop.OUTPUT_FILE_BACKUPS);
+        this.backups = b != null ? Math.max(0, JavaSnoop.getIntProperty(JavaSnoop.OUTPUT_FILE_BACKUPS)) : DEFAULT_BACKUPS;
+
+        Runtime.getRuntime().addShutdownHook(new Thread("JavaSnoop Output File Flusher") {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    public synchronized void write(InvocationEvent event, String text) {
+
+        HookSnapshot hook = event.getHook();
+
+        if ( ! hook.isOutputToFile() ) {
+            return;
+        }
+
+        String name = hook.getOutputFile();
+        OutputFileWriter writer = writersByName.get(name);
+
+        try {
+
+            if ( writer == null ) {
+                writer = getWriter(name);
+            }
+
+            writer.write(text.getBytes());
+
+        } catch (IOException ioe) {
+            File f = writer != null ? writer.getFile() : new File(name);
+            showError("Failed to append data to file. Problem writing to file " + f.getAbsolutePath() + ": " + ioe.getMessage());
+            return;
+        }
+
+        if ( System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL ) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+
+        long now = System.currentTimeMillis();
+        lastFlush = now;
+
+        Iterator<OutputFileWriter> it = writersByPath.values().iterator();
+
+        while ( it.hasNext() ) {
+
+            OutputFileWriter writer = it.next();
+
+            try {
+
+                writer.flush();
+
+                if ( now - writer.getLastWrite() > IDLE_TIMEOUT ) {
+                    writer.close();
+                    it.remove();
+                    // every name for the file, so none of them keeps the closed writer
+                    writersByName.values().removeAll(Collections.singleton(writer));
+                }
+
+            } catch (IOException ioe) {
+                showError("Failed to append data to file. Problem writing to file " + writer.getFile().getAbsolutePath() + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes every open file.
+     */
+    public synchronized void close() {
+
+        for ( OutputFileWriter writer : writersByPath.values() ) {
+            try {
+                writer.close();
+            } catch (IOException ioe) {
+                AgentLogger.error("Problem closing output file " + writer.getFile().getAbsolutePath(), ioe);
+            }
+        }
+
+        writersByPath.clear();
+        writersByName.clear();
+    }
+
+    private OutputFileWriter getWriter(String name) throws IOException {
+
+        File f = new File(name);
+        String path = f.getCanonicalPath();
+
+        OutputFileWriter writer = writersByPath.get(path);
+
+        if ( writer == null ) {
+            writer = new OutputFileWriter(f, maxSize, backups);
+            writersByPath.put(path, writer);
+        }
+
+        writersByName.put(name, writer);
+
+        return writer;
+    }
+
+    private void showError(String message) {
+        JavaSnoopView view = SnoopAgent.getMainView();
+        if ( view != null ) {
+            view.showConsoleErrorMessage(message);
+        } else {
+            AgentLogger.error(message);
+        }
+    }
+}
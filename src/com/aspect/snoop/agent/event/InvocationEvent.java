@@ -0,0 +1,147 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+import com.aspect.snoop.JavaSnoop;
+import com.aspect.snoop.agent.manager.HookSnapshot;
+
+/**
+ * A record of one hooked invocation, captured on the application thread and
+ * handed to the EventPipeline. The arguments are turned into strings right
+ * away, so what gets printed is what the method was called with; the rest
+ * of the formatting, looking up the method and writing happen later on the
+ * pipeline's own thread, which never touches the application's objects.
+ */
+public class InvocationEvent {
+
+    public enum Type {
+        Parameters,
+        StackTrace
+    }
+
+    private final Type type;
+    private final HookSnapshot hook;
+    private final int methodId;
+    private final String threadName;
+    private final long timestamp;
+    private static final int DEFAULT_ARGUMENT_CHARS = 4096;
+
+    // how much of each argument's string is kept, 0 for all of it
+    private static final int argumentChars;
+
+    private final String[] arguments;
+    private final StackTraceElement[] stackTrace;
+
+    static {
+        String c = JavaSnoop.getProperty(JavaSnoop.EVENT_ARGUMENT_MAX_CHARS);
+        argumentChars = c != null ? Math.max(0, JavaSnoop.getIntProperty(JavaSnoop.EVENT_ARGUMENT_MAX_CHARS)) : DEFAULT_ARGUMENT_CHARS;
+    }
+
+    private InvocationEvent(Type type, HookSnapshot hook, int methodId, String[] arguments, StackTraceElement[] stackTrace) {
+        this.type = type;
+        this.hook = hook;
+        this.methodId = methodId;
+        this.threadName = Thread.currentThread().getName();
+        this.timestamp = System.currentTimeMillis();
+        this.arguments = arguments;
+        this.stackTrace = stackTrace;
+    }
+
+    /**
+     * Takes the arguments' strings on the calling thread, before a tampering
+     * hook or the application can change them.
+     */
+    public static InvocationEvent parameters(HookSnapshot hook, int methodId, Object[] arguments) {
+
+        String[] strings = new String[arguments.length];
+
+        for (int i = 0; i < arguments.length; i++) {
+            strings[i] = describe(arguments[i]);
+        }
+
+        return new InvocationEvent(Type.Parameters, hook, methodId, strings, null);
+    }
+
+    /**
+     * @param stackTrace the callers of the hooked method, as captured by
+     *                   StackCapture
+     */
+    public static InvocationEvent stackTrace(HookSnapshot hook, int methodId, StackTraceElement[] stackTrace) {
+        return new InvocationEvent(Type.StackTrace, hook, methodId, null, stackTrace);
+    }
+
+    private static String describe(Object o) {
+
+        String s;
+
+        try {
+            s = String.valueOf(o);
+        } catch (Throwable t) {
+            return "(" + o.getClass().getName() + ".toString() threw " + t.getClass().getName() + ")";
+        }
+
+        if ( argumentChars > 0 && s != null && s.length() > argumentChars ) {
+            s = s.substring(0, argumentChars) + "... (" + s.length() + " chars)";
+        }
+
+        return s;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the hook's settings as of the call
+     */
+    public HookSnapshot getHook() {
+        return hook;
+    }
+
+    public int getHookId() {
+        return hook.getId();
+    }
+
+    /**
+     * @return the MethodRegistry id of the hooked method
+     */
+    public int getMethodId() {
+        return methodId;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the arguments as strings, or null for a stack trace event
+     */
+    public String[] getArguments() {
+        return arguments;
+    }
+
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace;
+    }
+}
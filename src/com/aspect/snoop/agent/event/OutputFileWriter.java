@@ -0,0 +1,136 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output file that's kept open between writes. Writes are buffered and
+ * pushed to disk when the buffer fills or when the owner calls flush().
+ * If a maximum size is set, the file is rolled over to file.1, file.2, etc.
+ * once it gets that big.
+ */
+class OutputFileWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long maxSize;
+    private final int backups;
+
+    private OutputStream out;
+    private long size;
+    private long lastWrite;
+    private boolean dirty;
+
+    /**
+     * @param maxSize the size at which to roll the file over, or 0 to let it
+     *                grow forever
+     * @param backups how many rolled over files to keep
+     */
+    OutputFileWriter(File file, long maxSize, int backups) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.backups = backups;
+        open();
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+        size = file.length();
+    }
+
+    synchronized void write(byte[] data) throws IOException {
+
+        if ( out == null ) {
+            open();
+        }
+
+        if ( maxSize > 0 && size > 0 && size + data.length > maxSize ) {
+            rotate();
+        }
+
+        out.write(data);
+        size += data.length;
+        lastWrite = System.currentTimeMillis();
+        dirty = true;
+    }
+
+    synchronized void flush() throws IOException {
+        if ( out != null && dirty ) {
+            out.flush();
+            dirty = false;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if ( out != null ) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+                dirty = false;
+            }
+        }
+    }
+
+    synchronized long getLastWrite() {
+        return lastWrite;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private void rotate() throws IOException {
+
+        close();
+
+        String path = file.getPath();
+
+        if ( backups > 0 ) {
+
+            File oldest = new File(path + "." + backups);
+            if ( oldest.exists() ) {
+                oldest.delete();
+            }
+
+            for ( int i = backups - 1; i >= 1; i-- ) {
+                File f = new File(path + "." + i);
+                if ( f.exists() ) {
+                    f.renameTo(new File(path + "." + (i + 1)));
+                }
+            }
+
+            if ( ! file.renameTo(new File(path + ".1")) ) {
+                throw new IOException("Couldn't roll over " + file.getAbsolutePath());
+            }
+
+        } else {
+            file.delete();
+        }
+
+        open();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+import com.aspect.snoop.JavaSnoop;
+import com.aspect.snoop.agent.AgentLogger;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Grabs the current thread's stack for print-stack-trace hooks, keeping only
+ * the top frames. On Java 9 and later this uses StackWalker, which only
+ * materializes the frames we keep; on older JVMs it falls back to filling
+ * in a Throwable and copying out what we need.
+ *
+ * The agent still has to build for Java 6, so StackWalker is reached
+ * through reflection.
+ */
+public class StackCapture {
+
+    private static final int DEFAULT_DEPTH = 32;
+
+    private static final int depth;
+
+    private static Object walker;
+    private static Method walk;
+    private static Method skip;
+    private static Method limit;
+    private static Method toArray;
+    private static Method toStackTraceElement;
+    private static Class functionType;
+
+    private static volatile WalkFunction lastFunction;
+
+    static {
+
+        String d = JavaSnoop.getProperty(JavaSnoop.STACK_TRACE_DEPTH);
+        depth = d != null ? Math.max(0, JavaSnoop.getIntProperty(JavaSnoop.STACK_TRACE_DEPTH)) : DEFAULT_DEPTH;
+
+        try {
+            Class walkerType = Class.forName("java.lang.StackWalker");
+            Class frameType = Class.forName("java.lang.StackWalker$StackFrame");
+            Class streamType = Class.forName("java.util.stream.Stream");
+            functionType = Class.forName("java.util.function.Function");
+
+            walker = walkerType.getMethod("getInstance").invoke(null);
+            walk = walkerType.getMethod("walk", functionType);
+            skip = streamType.getMethod("skip", long.class);
+            limit = streamType.getMethod("limit", long.class);
+            toArray = streamType.getMethod("toArray");
+            toStackTraceElement = frameType.getMethod("toStackTraceElement");
+
+        } catch (ClassNotFoundException cnfe) {
+            walker = null; // older JVM
+        } catch (Exception e) {
+            AgentLogger.debug("Couldn't set up StackWalker, falling back to Throwable", e);
+            walker = null;
+        }
+    }
+
+    /**
+     * @return how many frames each capture keeps, or 0 for all of them
+     */
+    public static int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @param skip how many frames to leave off above the caller (0 means the
+     *             stack starts with whoever called this method)
+     * @return the top of the calling thread's stack
+     */
+    public static StackTraceElement[] capture(int skip) {
+
+        if ( walker != null ) {
+            try {
+                return walk(skip + 2);
+            } catch (Exception e) {
+                AgentLogger.debug("StackWalker failed, falling back to Throwable", e);
+                walker = null;
+            }
+        }
+
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+
+        int from = Math.min(skip + 1, stack.length);
+        int count = stack.length - from;
+
+        if ( depth > 0 && count > depth ) {
+            count = depth;
+        }
+
+        StackTraceElement[] frames = new StackTraceElement[count];
+        System.arraycopy(stack, from, frames, 0, count);
+
+        return frames;
+    }
+
+    /*
+     * Reflection frames are left out by a default StackWalker, so the first
+     * frame it reports is this method, then capture(), then capture()'s
+     * caller.
+     */
+    private static StackTraceElement[] walk(int frames) throws Exception {
+
+        WalkFunction function = lastFunction;
+
+        // capture() is always called with the same skip, so this is built once
+        if ( function == null || function.frames != frames ) {
+            function = new WalkFunction(frames);
+            lastFunction = function;
+        }
+
+        Object[] stack = (Object[])walk.invoke(walker, function.proxy);
+        StackTraceElement[] elements = new StackTraceElement[stack.length];
+
+        for (int i = 0; i < stack.length; i++) {
+            elements[i] = (StackTraceElement)toStackTraceElement.invoke(stack[i]);
+        }
+
+        return elements;
+    }
+
+    /*
+     * The java.util.function.Function handed to StackWalker.walk(), which
+     * cuts the stream of frames down to the ones we keep.
+     */
+    private static class WalkFunction implements InvocationHandler {
+
+        final int frames;
+        final Object proxy;
+
+        WalkFunction(int frames) {
+            this.frames = frames;
+            this.proxy = Proxy.newProxyInstance(StackCapture.class.getClassLoader(), new Class[]{functionType}, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ( ! "apply".equals(method.getName()) ) {
+                return method.invoke(this, args);
+            }
+            Object stream = skip.invoke(args[0], (long)frames);
+            if ( depth > 0 ) {
+                stream = limit.invoke(stream, (long)depth);
+            }
+            return toArray.invoke(stream);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.event;
+
+import com.aspect.snoop.JavaSnoop;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every distinct stack seen by a print-stack-trace hook, with how many times
+ * it's been seen. Stacks are keyed by the hooked method and the frames, so
+ * a hot call site only gets printed in full once and after that is just a
+ * stack id and a count, and the whole table doubles as a "who calls this"
+ * summary. It holds at most stack_table_limit stacks; once it's full, new
+ * stacks aren't counted and get printed in full every time.
+ */
+public class StackTable {
+
+    private static final int DEFAULT_LIMIT = 10000;
+
+    private static final int limit;
+
+    private static final ConcurrentMap<Key,Entry> stacks = new ConcurrentHashMap<Key,Entry>();
+
+    private static final AtomicLong untracked = new AtomicLong();
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    static {
+        String l = JavaSnoop.getProperty(JavaSnoop.STACK_TABLE_LIMIT);
+        limit = l != null ? Math.max(0, JavaSnoop.getIntProperty(JavaSnoop.STACK_TABLE_LIMIT)) : DEFAULT_LIMIT;
+    }
+
+    /**
+     * Counts one occurrence of the stack.
+     * @return the entry for the stack, whose count is 1 the first time
+     */
+    public static Entry record(int methodId, StackTraceElement[] frames) {
+
+        Key key = new Key(methodId, frames);
+        Entry entry = stacks.get(key);
+
+        // a racing put can take it a little over, which doesn't matter
+        if ( entry == null && stacks.size() >= limit ) {
+            untracked.incrementAndGet();
+            entry = new Entry(nextId.getAndIncrement(), methodId, frames);
+        } else if ( entry == null ) {
+            Entry created = new Entry(nextId.getAndIncrement(), methodId, frames);
+            entry = stacks.putIfAbsent(key, created);
+            if ( entry == null ) {
+                entry = created;
+            }
+        }
+
+        entry.count.incrementAndGet();
+
+        return entry;
+    }
+
+    /**
+     * @return every stack seen so far, grouped by method and busiest first
+     */
+    public static List<Entry> getEntries() {
+
+        List<Entry> entries = new ArrayList<Entry>(stacks.values());
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if ( a.methodId != b.methodId ) {
+                    return a.methodId < b.methodId ? -1 : 1;
+                }
+                long ca = a.getCount();
+                long cb = b.getCount();
+                return ca == cb ? 0 : (ca > cb ? -1 : 1);
+            }
+        });
+
+        return entries;
+    }
+
+    /**
+     * @return how many stacks weren't counted because the table was full
+     */
+    public static long getUntrackedCount() {
+        return untracked.get();
+    }
+
+    public static void clear() {
+        stacks.clear();
+        untracked.set(0);
+    }
+
+    public static class Entry {
+
+        private final int id;
+        private final int methodId;
+        private final StackTraceElement[] frames;
+        private final AtomicLong count = new AtomicLong();
+
+        Entry(int id, int methodId, StackTraceElement[] frames) {
+            this.id = id;
+            this.methodId = methodId;
+            this.frames = frames;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getMethodId() {
+            return methodId;
+        }
+
+        public StackTraceElement[] getFrames() {
+            return frames;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    private static class Key {
+
+        final int methodId;
+        final StackTraceElement[] frames;
+        final int hash;
+
+        Key(int methodId, StackTraceElement[] frames) {
+            this.methodId = methodId;
+            this.frames = frames;
+            this.hash = 31 * methodId + Arrays.hashCode(frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if ( ! (o instanceof Key) ) {
+                return false;
+            }
+            Key k = (Key)o;
+            return hash == k.hash && methodId == k.methodId && Arrays.equals(frames, k.frames);
+        }
+    }
+}
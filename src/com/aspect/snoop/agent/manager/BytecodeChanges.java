@@ -0,0 +1,346 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import javassist.CannotCompileException;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * Code that's written into a method as bytecode, rather than compiled from
+ * source by Javassist. Going through the compiler means resolving every
+ * type in the source through the class pool, which is most of what
+ * instrumenting a method costs; the code here only needs the method's
+ * descriptor.
+ */
+public abstract class BytecodeChanges {
+
+    /**
+     * Writes the code into the method.
+     */
+    public abstract void apply(CtBehavior method) throws CannotCompileException;
+
+    /**
+     * @return a description of everything the code does, so two versions
+     *         of it can be compared
+     */
+    @Override
+    public abstract String toString();
+
+    /**
+     * A method being changed, and what we need to know about it to write
+     * code that uses its parameters and return value.
+     */
+    protected static class Target {
+
+        private final CtClass clazz;
+        private final MethodInfo info;
+        private final CodeAttribute code;
+
+        private final String[] parameters;
+        private final int[] slots;
+        private final String returnType;
+
+        public Target(CtBehavior method) throws CannotCompileException {
+
+            this.clazz = method.getDeclaringClass();
+            this.info = method.getMethodInfo();
+            this.code = info.getCodeAttribute();
+
+            if ( code == null ) {
+                throw new CannotCompileException("no method body: " + method.getLongName());
+            }
+
+            String desc = info.getDescriptor();
+            List<String> types = new ArrayList<String>();
+
+            int i = 1;
+
+            while ( desc.charAt(i) != ')' ) {
+                int end = i;
+                while ( desc.charAt(end) == '[' ) {
+                    end++;
+                }
+                if ( desc.charAt(end) == 'L' ) {
+                    end = desc.indexOf(';', end);
+                }
+                types.add(desc.substring(i, end + 1));
+                i = end + 1;
+            }
+
+            this.parameters = types.toArray(new String[types.size()]);
+            this.returnType = desc.substring(i + 1);
+            this.slots = new int[parameters.length];
+
+            int slot = (info.getAccessFlags() & AccessFlag.STATIC) != 0 ? 0 : 1;
+
+            for ( int j = 0; j < parameters.length; j++ ) {
+                slots[j] = slot;
+                slot += size(parameters[j]);
+            }
+        }
+
+        public int getParameterCount() {
+            return parameters.length;
+        }
+
+        public String getReturnType() {
+            return returnType;
+        }
+
+        public Bytecode newBytecode() {
+            return new Bytecode(info.getConstPool());
+        }
+
+        /**
+         * @return the slot of a new local variable of the given type
+         */
+        public int newLocal(String type) {
+            int slot = code.getMaxLocals();
+            code.setMaxLocals(slot + size(type));
+            return slot;
+        }
+
+        /**
+         * Pushes the parameters as an Object[], like $args.
+         */
+        public void pushArgs(Bytecode b) {
+
+            b.addIconst(parameters.length);
+            b.addAnewarray("java.lang.Object");
+
+            for ( int i = 0; i < parameters.length; i++ ) {
+                b.addOpcode(Opcode.DUP);
+                b.addIconst(i);
+                load(b, parameters[i], slots[i]);
+                box(b, parameters[i]);
+                b.addOpcode(Opcode.AASTORE);
+            }
+        }
+
+        /**
+         * Pushes the parameters as they are, to pass them on to another
+         * method with the same descriptor.
+         */
+        public void pushParameters(Bytecode b) {
+            for ( int i = 0; i < parameters.length; i++ ) {
+                load(b, parameters[i], slots[i]);
+            }
+        }
+
+        /**
+         * @return the number of local slots the parameters (and this) take
+         */
+        public int getParameterSlots() {
+            return parameters.length == 0 ? ((info.getAccessFlags() & AccessFlag.STATIC) != 0 ? 0 : 1)
+                    : slots[parameters.length - 1] + size(parameters[parameters.length - 1]);
+        }
+
+        /**
+         * Stores the value on the stack, an Object, into a parameter.
+         */
+        public void storeParameter(Bytecode b, int i) {
+            unbox(b, parameters[i]);
+            store(b, parameters[i], slots[i]);
+        }
+
+        /**
+         * Inserts the code where the method starts. For a constructor
+         * that's before the call to super() or this(), as with
+         * insertBefore(), so changed parameters reach that call too. The
+         * code mustn't touch this, which isn't initialized there yet.
+         */
+        public void insertAtStart(Bytecode b) throws CannotCompileException {
+
+            try {
+                // jumps back to the start of the body don't run it again
+                code.iterator().insertExAt(0, b.get());
+            } catch (BadBytecode e) {
+                throw new CannotCompileException(e);
+            }
+        }
+
+        /**
+         * Inserts the code before every return. The code is left with the
+         * return value on the stack, just as it found it.
+         */
+        public void insertBeforeReturns(Bytecode b) throws CannotCompileException {
+
+            try {
+
+                CodeIterator it = code.iterator();
+                List<Integer> returns = new ArrayList<Integer>();
+
+                while ( it.hasNext() ) {
+                    int pos = it.next();
+                    int op = it.byteAt(pos);
+                    if ( op >= Opcode.IRETURN && op <= Opcode.RETURN ) {
+                        returns.add(pos);
+                    }
+                }
+
+                // from the end, so the positions still to go don't move
+                for ( int i = returns.size() - 1; i >= 0; i-- ) {
+                    it.insertAt(returns.get(i), b.get());
+                }
+
+            } catch (BadBytecode e) {
+                throw new CannotCompileException(e);
+            }
+        }
+
+        /**
+         * Marks the class changed and brings the stack size and stack map
+         * up to date with the new code.
+         */
+        public void finish() throws CannotCompileException {
+            try {
+                clazz.getClassFile();
+                code.computeMaxStack();
+                info.rebuildStackMapIf6(clazz.getClassPool(), clazz.getClassFile2());
+            } catch (BadBytecode e) {
+                throw new CannotCompileException(e);
+            }
+        }
+    }
+
+    /**
+     * Adds a branch that's taken if the int on the stack is zero.
+     * @return the branch, for land()
+     */
+    protected static int ifeq(Bytecode b) {
+        return branch(b, Opcode.IFEQ);
+    }
+
+    protected static int branch(Bytecode b, int opcode) {
+        int pos = b.currentPc();
+        b.addOpcode(opcode);
+        b.addIndex(0);
+        return pos;
+    }
+
+    /**
+     * Points the branch at the next instruction.
+     */
+    protected static void land(Bytecode b, int branch) {
+        b.write16bit(branch + 1, b.currentPc() - branch);
+    }
+
+    protected static int size(String type) {
+        return "J".equals(type) || "D".equals(type) ? 2 : 1;
+    }
+
+    protected static void load(Bytecode b, String type, int slot) {
+        switch ( type.charAt(0) ) {
+            case 'Z': case 'B': case 'C': case 'S': case 'I': b.addIload(slot); break;
+            case 'J': b.addLload(slot); break;
+            case 'F': b.addFload(slot); break;
+            case 'D': b.addDload(slot); break;
+            default: b.addAload(slot);
+        }
+    }
+
+    /**
+     * Returns the value on the stack, if there is one, from the method.
+     */
+    protected static void addReturn(Bytecode b, String type) {
+        switch ( type.charAt(0) ) {
+            case 'V': b.addOpcode(Opcode.RETURN); break;
+            case 'Z': case 'B': case 'C': case 'S': case 'I': b.addOpcode(Opcode.IRETURN); break;
+            case 'J': b.addOpcode(Opcode.LRETURN); break;
+            case 'F': b.addOpcode(Opcode.FRETURN); break;
+            case 'D': b.addOpcode(Opcode.DRETURN); break;
+            default: b.addOpcode(Opcode.ARETURN);
+        }
+    }
+
+    protected static void store(Bytecode b, String type, int slot) {
+        switch ( type.charAt(0) ) {
+            case 'Z': case 'B': case 'C': case 'S': case 'I': b.addIstore(slot); break;
+            case 'J': b.addLstore(slot); break;
+            case 'F': b.addFstore(slot); break;
+            case 'D': b.addDstore(slot); break;
+            default: b.addAstore(slot);
+        }
+    }
+
+    /**
+     * Turns the value on the stack into an Object.
+     */
+    protected static void box(Bytecode b, String type) {
+        String wrapper = getWrapper(type);
+        if ( wrapper != null ) {
+            b.addInvokestatic(wrapper, "valueOf", "(" + type + ")L" + wrapper.replace('.', '/') + ";");
+        }
+    }
+
+    /**
+     * Turns the Object on the stack into a value of the given type.
+     */
+    protected static void unbox(Bytecode b, String type) {
+
+        String wrapper = getWrapper(type);
+
+        if ( wrapper != null ) {
+            b.addCheckcast(wrapper);
+            b.addInvokevirtual(wrapper, getUnboxMethod(type), "()" + type);
+        } else if ( type.charAt(0) == '[' ) {
+            b.addCheckcast(type);
+        } else if ( ! "Ljava/lang/Object;".equals(type) ) {
+            b.addCheckcast(type.substring(1, type.length() - 1));
+        }
+    }
+
+    private static String getWrapper(String type) {
+        switch ( type.charAt(0) ) {
+            case 'Z': return "java.lang.Boolean";
+            case 'B': return "java.lang.Byte";
+            case 'C': return "java.lang.Character";
+            case 'S': return "java.lang.Short";
+            case 'I': return "java.lang.Integer";
+            case 'J': return "java.lang.Long";
+            case 'F': return "java.lang.Float";
+            case 'D': return "java.lang.Double";
+            default: return null;
+        }
+    }
+
+    private static String getUnboxMethod(String type) {
+        switch ( type.charAt(0) ) {
+            case 'Z': return "booleanValue";
+            case 'B': return "byteValue";
+            case 'C': return "charValue";
+            case 'S': return "shortValue";
+            case 'I': return "intValue";
+            case 'J': return "longValue";
+            case 'F': return "floatValue";
+            default: return "doubleValue";
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One version of a class's bytecode, as kept by the ClassHistoryStore.
+ * Identical bytecode is shared between histories, and copies that haven't
+ * been used in a while are kept deflated.
+ */
+class ClassBytes {
+
+    private final String digest;
+    private final int length;
+
+    private byte[] raw;
+    private byte[] deflated;
+
+    private long lastUsed;
+
+    // how many history fields point at this, counted by the store
+    int refs;
+
+    ClassBytes(String digest, byte[] bytes) {
+        this.digest = digest;
+        this.length = bytes.length;
+        this.raw = bytes;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return the bytecode. Compressed copies are inflated fresh each time
+     *         rather than kept, since history is only read when a class is
+     *         re-instrumented or reset.
+     */
+    synchronized byte[] getBytes() {
+
+        lastUsed = System.currentTimeMillis();
+
+        if ( raw != null ) {
+            return raw;
+        }
+
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(deflated);
+            byte[] bytes = new byte[length];
+            int n = 0;
+            while ( n < length && ! inflater.finished() ) {
+                n += inflater.inflate(bytes, n, length - n);
+            }
+            return bytes;
+        } catch (DataFormatException e) {
+            // we wrote it ourselves, so this can't happen
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    synchronized boolean isCompressed() {
+        return raw == null;
+    }
+
+    synchronized long getLastUsed() {
+        return lastUsed;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return how many bytes of heap the bytecode is taking up right now
+     */
+    synchronized int getFootprint() {
+        return raw != null ? raw.length : deflated.length;
+    }
+
+    synchronized void compress() {
+
+        if ( raw == null ) {
+            return;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+            byte[] buf = new byte[4096];
+
+            while ( ! deflater.finished() ) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+
+            deflated = out.toByteArray();
+            raw = null;
+
+        } finally {
+            deflater.end();
+        }
+    }
+}
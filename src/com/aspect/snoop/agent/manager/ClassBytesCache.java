@@ -0,0 +1,189 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.JavaSnoop;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class file bytes we've read for the UI, keyed by the loader and name of
+ * the class. Once the cached bytes add up to more than class_bytes_cache
+ * KB, the least recently used entries are dropped. Entries are dropped too
+ * when their class is redefined, or when their loader is collected; the
+ * cache doesn't keep loaders alive.
+ */
+public class ClassBytesCache {
+
+    private static final int DEFAULT_MEMORY = 4 * 1024;
+
+    private final Map<Key,byte[]> entries = new LinkedHashMap<Key,byte[]>(16, 0.75f, true);
+
+    // the keys whose loaders have been collected
+    private final ReferenceQueue<ClassLoader> collected = new ReferenceQueue<ClassLoader>();
+
+    private final long limit;
+    private long size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ClassBytesCache() {
+        String s = JavaSnoop.getProperty(JavaSnoop.CLASS_BYTES_CACHE);
+        int kb = s != null ? Math.max(0, JavaSnoop.getIntProperty(JavaSnoop.CLASS_BYTES_CACHE)) : DEFAULT_MEMORY;
+        this.limit = kb * 1024L;
+    }
+
+    /**
+     * @return the cached bytes, or null if we don't have them
+     */
+    public synchronized byte[] get(ClassLoader loader, String className) {
+
+        expunge();
+
+        byte[] bytes = entries.get(new Key(loader, className, null));
+
+        if ( bytes != null ) {
+            hits++;
+        } else {
+            misses++;
+        }
+
+        return bytes;
+    }
+
+    public synchronized void put(ClassLoader loader, String className, byte[] bytes) {
+
+        if ( bytes.length > limit ) {
+            return;
+        }
+
+        expunge();
+
+        byte[] old = entries.put(new Key(loader, className, collected), bytes);
+
+        if ( old != null ) {
+            size -= old.length;
+        }
+
+        size += bytes.length;
+
+        Iterator<byte[]> it = entries.values().iterator();
+
+        while ( size > limit && it.hasNext() ) {
+            size -= it.next().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Forgets the bytes of a class that's been redefined.
+     */
+    public synchronized void invalidate(Class clazz) {
+
+        expunge();
+
+        byte[] old = entries.remove(new Key(clazz.getClassLoader(), clazz.getName(), null));
+
+        if ( old != null ) {
+            size -= old.length;
+        }
+    }
+
+    private void expunge() {
+
+        Object key;
+
+        while ( (key = collected.poll()) != null ) {
+            byte[] old = entries.remove(key);
+            if ( old != null ) {
+                size -= old.length;
+            }
+        }
+    }
+
+    public synchronized long getSize() {
+        expunge();
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        expunge();
+        return entries.size() + " classes in " + (size / 1024) + "/" + (limit / 1024) + " KB, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    /*
+     * Refers to the loader weakly. A collected loader's key only equals
+     * itself, which is all it takes to remove it.
+     */
+    private static class Key extends WeakReference<ClassLoader> {
+
+        final boolean bootstrap;
+        final String name;
+        final int hash;
+
+        Key(ClassLoader loader, String name, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.bootstrap = loader == null;
+            this.name = name;
+            this.hash = System.identityHashCode(loader) * 31 + name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if ( this == o ) {
+                return true;
+            }
+            if ( ! (o instanceof Key) ) {
+                return false;
+            }
+            Key other = (Key)o;
+            if ( hash != other.hash || bootstrap != other.bootstrap || ! name.equals(other.name) ) {
+                return false;
+            }
+            ClassLoader loader = get();
+            return bootstrap || (loader != null && loader == other.get());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -26,60 +26,83 @@ import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Member;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 public class ClassChanges {
 
     String className;
     Class clazz;
-    HashMap<MethodWrapper, MethodChanges> methodChanges;
+    LinkedHashMap<String, List<FunctionHook>> hooks;
+    HashMap<String, AccessibleObject> methods;
+    InstrumentationManager manager;
 
     public ClassChanges(Class clazz) {
         this.clazz = clazz;
-        this.methodChanges = new HashMap<MethodWrapper,MethodChanges>();
+        this.hooks = new LinkedHashMap<String,List<FunctionHook>>();
+        this.methods = new HashMap<String,AccessibleObject>();
     }
 
     public MethodChanges[] getAllMethodChanges() {
         
         List<MethodChanges> changes = new ArrayList<MethodChanges>();
         
-        for ( MethodWrapper method : methodChanges.keySet() ) {
-            changes.add( methodChanges.get(method) );
+        for ( String signature : hooks.keySet() ) {
+            changes.add( getMethodChanges(signature) );
         }
         
         return changes.toArray( new MethodChanges[]{} );
     }
 
     public MethodChanges getMethodChanges(Member m) {
-        MethodWrapper method = MethodWrapper.getWrapper(m);
-        return methodChanges.get(method);
+        return getMethodChanges(getSignature(MethodWrapper.getWrapper(m)));
     }
 
     public MethodChanges getMethodChanges(AccessibleObject m) {
-        MethodWrapper method = MethodWrapper.getWrapper(m);
-        return methodChanges.get(method);
+        return getMethodChanges(getSignature(MethodWrapper.getWrapper(m)));
+    }
+
+    /*
+     * All the hooks on a method are generated together, so the method only
+     * pays for one call into the dispatcher no matter how many there are.
+     */
+    private MethodChanges getMethodChanges(String signature) {
+
+        List<FunctionHook> methodHooks = hooks.get(signature);
+
+        if ( methodHooks == null ) {
+            return null;
+        }
+
+        return Hook2JavaUtil.hooks2Java(clazz, methods.get(signature), methodHooks, manager);
     }
 
     public void registerHook(FunctionHook hook, InstrumentationManager manager) {
         
         MethodWrapper method = MethodWrapper.getWrapper(hook.getClazz(),hook.getMethodName(),hook.getParameterTypes());
 
-        // #1: get the method changes we already have for this method
-        MethodChanges changes = methodChanges.get(method);
+        /*
+         * Key on the name and parameters rather than the declared method, so
+         * a hook on a supertype's method and one on the override end up in
+         * the same place.
+         */
+        String signature = getSignature(method);
 
-        if ( changes == null ) {
-            changes = new MethodChanges(method.getActualMethod());
-            methodChanges.put(method, changes);
+        List<FunctionHook> methodHooks = hooks.get(signature);
+
+        if ( methodHooks == null ) {
+            methodHooks = new ArrayList<FunctionHook>();
+            hooks.put(signature, methodHooks);
+            methods.put(signature, method.getActualMethod());
         }
 
-        // #2: get the new changes we're going to need for this hook
-        MethodChanges newChanges = Hook2JavaUtil.hook2Java(hook, manager);
+        methodHooks.add(hook);
 
-        // #3: add the new changes to the old changes
-        changes.appendStartSrc(newChanges.getNewStartSrc());
-        changes.appendEndSrc(newChanges.getNewEndSrc());
-        changes.addLocalVariables(newChanges.getNewLocalVariables());
+        this.manager = manager;
+    }
 
+    private static String getSignature(MethodWrapper method) {
+        return MethodDescriptor.getSignature(method.getName(), method.getParameterTypes());
     }
  
 }
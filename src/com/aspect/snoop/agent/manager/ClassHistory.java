@@ -19,58 +19,71 @@
 
 package com.aspect.snoop.agent.manager;
 
+/**
+ * The original, previous and current bytecode of a class we've changed.
+ * Once it's in the ClassHistoryStore, the versions may be shared with other
+ * histories and kept compressed, so they're read back through the getters.
+ */
 public class ClassHistory {
 
     private Class clazz;
-    private byte[] originalClass;
-    private byte[] lastClass;
-    private byte[] currentClass;
+    private ClassBytes originalClass;
+    private ClassBytes lastClass;
+    private ClassBytes currentClass;
+    private String fingerprint;
+    private boolean wrapped;
 
     public ClassHistory(Class clazz, byte[] originalClass, byte[] currentClass) {
         this.clazz = clazz;
-        this.originalClass = originalClass;
-        this.currentClass = currentClass;
+        this.originalClass = ClassHistoryStore.wrap(originalClass);
+        this.lastClass = this.originalClass;
+        this.currentClass = ClassHistoryStore.wrap(currentClass);
     }
 
     /**
      * @return the originalClass
      */
     public byte[] getOriginalClass() {
-        return originalClass;
-    }
-
-    /**
-     * @param originalClass the originalClass to set
-     */
-    public void setOriginalClass(byte[] originalClass) {
-        this.originalClass = originalClass;
+        return originalClass.getBytes();
     }
 
     /**
      * @return the lastClass
      */
     public byte[] getLastClass() {
-        return lastClass;
+        return lastClass.getBytes();
     }
 
     /**
+     * Only meant for a history that hasn't been put in the store yet.
      * @param lastClass the lastClass to set
      */
     public void setLastClass(byte[] lastClass) {
-        this.lastClass = lastClass;
+        this.lastClass = ClassHistoryStore.wrap(lastClass);
     }
 
     /**
      * @return the currentClass
      */
     public byte[] getCurrentClass() {
+        return currentClass.getBytes();
+    }
+
+    ClassBytes getOriginalVersion() {
+        return originalClass;
+    }
+
+    ClassBytes getLastVersion() {
+        return lastClass;
+    }
+
+    ClassBytes getCurrentVersion() {
         return currentClass;
     }
 
-    /**
-     * @param currentClass the currentClass to set
-     */
-    public void setCurrentClass(byte[] currentClass) {
+    void setVersions(ClassBytes originalClass, ClassBytes lastClass, ClassBytes currentClass) {
+        this.originalClass = originalClass;
+        this.lastClass = lastClass;
         this.currentClass = currentClass;
     }
 
@@ -82,10 +95,31 @@ public class ClassHistory {
     }
 
     /**
-     * @param clazz the clazz to set
+     * @return a digest of the changes currently applied to the class, or
+     *         null if the class is running its original bytes
      */
-    public void setClazz(Class clazz) {
-        this.clazz = clazz;
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @param fingerprint the fingerprint to set
+     */
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return whether the original bytes have wrapped methods the class
+     *         file doesn't, in which case the history has to be kept for
+     *         as long as the class is around
+     */
+    public boolean isWrapped() {
+        return wrapped;
+    }
+
+    public void setWrapped(boolean wrapped) {
+        this.wrapped = wrapped;
     }
 
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.JavaSnoop;
+import com.aspect.snoop.agent.AgentLogger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the history of every class we've changed, keyed by the Class
+ * itself. Versions of the bytecode are stored once no matter how many
+ * histories refer to them (a class's "last" version is usually another
+ * history's "current" one, or its own original), and once the store holds
+ * more than class_history_memory KB of uncompressed bytecode, the least
+ * recently used versions are deflated.
+ */
+public class ClassHistoryStore {
+
+    private static final int DEFAULT_MEMORY = 8 * 1024;
+
+    private final Map<Class,ClassHistory> histories = new IdentityHashMap<Class,ClassHistory>();
+    private final Map<String,ClassBytes> versions = new HashMap<String,ClassBytes>();
+
+    private final long rawLimit;
+    private long rawSize;
+
+    public ClassHistoryStore() {
+        String s = JavaSnoop.getProperty(JavaSnoop.CLASS_HISTORY_MEMORY);
+        int kb = s != null ? Math.max(0, JavaSnoop.getIntProperty(JavaSnoop.CLASS_HISTORY_MEMORY)) : DEFAULT_MEMORY;
+        this.rawLimit = kb * 1024L;
+    }
+
+    public synchronized ClassHistory get(Class clazz) {
+        return histories.get(clazz);
+    }
+
+    public synchronized boolean contains(Class clazz) {
+        return histories.containsKey(clazz);
+    }
+
+    /**
+     * Records the history, replacing any the class already had.
+     */
+    public synchronized void put(ClassHistory history) {
+
+        history.setVersions(
+                intern(history.getOriginalVersion()),
+                intern(history.getLastVersion()),
+                intern(history.getCurrentVersion()));
+
+        ClassHistory old = histories.put(history.getClazz(), history);
+
+        if ( old != null ) {
+            release(old);
+        }
+
+        trim();
+    }
+
+    public synchronized ClassHistory remove(Class clazz) {
+
+        ClassHistory old = histories.remove(clazz);
+
+        if ( old != null ) {
+            release(old);
+        }
+
+        return old;
+    }
+
+    /**
+     * Records that the class is running the given bytes now, without
+     * changing its original.
+     */
+    public synchronized void setCurrentClass(Class clazz, byte[] bytes) {
+
+        ClassHistory history = histories.get(clazz);
+
+        if ( history == null ) {
+            return;
+        }
+
+        ClassBytes current = intern(wrap(bytes));
+        release(history.getLastVersion());
+        history.setVersions(history.getOriginalVersion(), history.getCurrentVersion(), current);
+    }
+
+    public synchronized List<ClassHistory> getAll() {
+        return new ArrayList<ClassHistory>(histories.values());
+    }
+
+    public synchronized int size() {
+        return histories.size();
+    }
+
+    /**
+     * @return how many distinct versions of bytecode are being kept
+     */
+    public synchronized int getVersionCount() {
+        return versions.size();
+    }
+
+    /**
+     * @return how much heap the stored bytecode takes up, after sharing and
+     *         compression
+     */
+    public synchronized long getFootprint() {
+        long total = 0;
+        for ( ClassBytes b : versions.values() ) {
+            total += b.getFootprint();
+        }
+        return total;
+    }
+
+    /**
+     * @return how much heap the histories would take up if every version
+     *         were kept whole for every class
+     */
+    public synchronized long getLogicalSize() {
+        long total = 0;
+        for ( ClassHistory h : histories.values() ) {
+            total += h.getOriginalVersion().getLength();
+            total += h.getLastVersion().getLength();
+            total += h.getCurrentVersion().getLength();
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return histories.size() + " classes, " + versions.size() + " versions, "
+                + (getFootprint() / 1024) + "KB held (" + (getLogicalSize() / 1024) + "KB unshared)";
+    }
+
+    /**
+     * Wraps bytes that aren't in the store yet.
+     */
+    static ClassBytes wrap(byte[] bytes) {
+        return new ClassBytes(digest(bytes), bytes);
+    }
+
+    private ClassBytes intern(ClassBytes b) {
+
+        ClassBytes existing = versions.get(b.getDigest());
+
+        if ( existing == null ) {
+            existing = b;
+            versions.put(b.getDigest(), b);
+            if ( ! b.isCompressed() ) {
+                rawSize += b.getLength();
+            }
+        }
+
+        existing.refs++;
+
+        return existing;
+    }
+
+    private void release(ClassHistory history) {
+        release(history.getOriginalVersion());
+        release(history.getLastVersion());
+        release(history.getCurrentVersion());
+    }
+
+    private void release(ClassBytes b) {
+        if ( --b.refs <= 0 && versions.remove(b.getDigest()) != null && ! b.isCompressed() ) {
+            rawSize -= b.getLength();
+        }
+    }
+
+    /*
+     * Deflates the versions that have gone longest without being used until
+     * we're comfortably back under the limit.
+     */
+    private void trim() {
+
+        if ( rawSize <= rawLimit ) {
+            return;
+        }
+
+        List<ClassBytes> raw = new ArrayList<ClassBytes>();
+
+        for ( ClassBytes b : versions.values() ) {
+            if ( ! b.isCompressed() ) {
+                raw.add(b);
+            }
+        }
+
+        Collections.sort(raw, new Comparator<ClassBytes>() {
+            public int compare(ClassBytes a, ClassBytes b) {
+                long x = a.getLastUsed();
+                long y = b.getLastUsed();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        long target = rawLimit * 3 / 4;
+
+        for ( ClassBytes b : raw ) {
+            if ( rawSize <= target ) {
+                break;
+            }
+            b.compress();
+            rawSize -= b.getLength();
+        }
+
+        AgentLogger.debug("Compressed class history: " + this);
+    }
+
+    private static String digest(byte[] bytes) {
+
+        try {
+
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] d = md.digest(bytes);
+
+            StringBuilder sb = new StringBuilder(d.length * 2 + 8);
+            for ( byte x : d ) {
+                sb.append(Character.forDigit((x >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(x & 0xF, 16));
+            }
+
+            // the length makes a collision even less likely to matter
+            return sb.append(':').append(bytes.length).toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
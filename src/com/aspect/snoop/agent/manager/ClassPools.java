@@ -0,0 +1,390 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.JavaSnoop;
+import com.aspect.snoop.agent.AgentLogger;
+import com.aspect.snoop.util.IOUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import javassist.ByteArrayClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+/**
+ * The Javassist pools we look classes up in. There's one pool per class
+ * loader, all sharing a root pool for the system classes, and each job
+ * that changes a class does it in a short-lived scope on top of its
+ * loader's pool, so the class it changes never lands in a shared pool.
+ * The shared pools only cache the classes they're asked about along the
+ * way, and one that caches more than class_pool_limit classes is thrown
+ * away and started again empty. Jobs that run in parallel each get a
+ * Worker with private copies of the pools instead.
+ */
+public class ClassPools {
+
+    private static final int DEFAULT_LIMIT = 2000;
+
+    private final int limit;
+
+    private ManagedPool root;
+    private final Map<ClassLoader,ManagedPool> pools = new WeakHashMap<ClassLoader,ManagedPool>();
+    private final Map<ClassLoader,List<SmartURLClassPath>> codeSources = new WeakHashMap<ClassLoader,List<SmartURLClassPath>>();
+    private final List<SmartURLClassPath> rootCodeSources = new ArrayList<SmartURLClassPath>();
+
+    private long scopes;
+    private long evictions;
+
+    public ClassPools() {
+        String s = JavaSnoop.getProperty(JavaSnoop.CLASS_POOL_LIMIT);
+        this.limit = s != null ? Math.max(1, JavaSnoop.getIntProperty(JavaSnoop.CLASS_POOL_LIMIT)) : DEFAULT_LIMIT;
+        this.root = newRoot();
+    }
+
+    /**
+     * Adds a place to look for the classes a loader defined, for loaders
+     * that can't hand back their own class files.
+     */
+    public synchronized void addCodeSource(ClassLoader loader, SmartURLClassPath cp) {
+
+        List<SmartURLClassPath> sources = loader == null ? rootCodeSources : codeSources.get(loader);
+
+        if ( sources == null ) {
+            sources = new ArrayList<SmartURLClassPath>();
+            codeSources.put(loader, sources);
+        }
+
+        if ( sources.contains(cp) ) {
+            return;
+        }
+
+        sources.add(cp);
+
+        ClassPool pool = loader == null ? root : pools.get(loader);
+
+        if ( pool != null ) {
+            pool.appendClassPath(cp);
+        }
+    }
+
+    /**
+     * @return the shared pool for the classes the loader can see
+     */
+    public synchronized ClassPool getPool(ClassLoader loader) {
+
+        if ( loader == null ) {
+            return root;
+        }
+
+        ManagedPool pool = pools.get(loader);
+
+        if ( pool == null ) {
+            pool = newPool(loader);
+            pools.put(loader, pool);
+        }
+
+        return pool;
+    }
+
+    /**
+     * Starts a job on a class the loader defined. The scope has to be
+     * closed when the job's done.
+     */
+    public Scope openScope(ClassLoader loader) {
+
+        ClassPool parent;
+
+        synchronized(this) {
+            parent = getPool(loader);
+            scopes++;
+        }
+
+        return new Scope(parent, loader, null);
+    }
+
+    /**
+     * Starts a set of pools for one worker thread to use on its own, so
+     * jobs running side by side don't share any Javassist state. They see
+     * the same class files as the shared pools, but cache separately.
+     * The worker has to be closed when it's done.
+     */
+    public synchronized Worker newWorker() {
+        return new Worker(newRoot());
+    }
+
+    /**
+     * Reads a class file the loader can see, without keeping a CtClass
+     * for it anywhere.
+     */
+    public byte[] getClassfile(ClassLoader loader, String className) throws NotFoundException, IOException {
+
+        // the code source the class was defined from is the surest place,
+        // and a jar one can be read without going through a URL
+        for ( SmartURLClassPath cp : getCodeSources(loader) ) {
+            byte[] bytes = cp.getClassfile(className);
+            if ( bytes != null ) {
+                return bytes;
+            }
+        }
+
+        ClassPool pool = getPool(loader);
+        URL url = pool.find(className);
+
+        if ( url == null && pool != root ) {
+            url = root.find(className);
+        }
+
+        if ( url == null ) {
+            throw new NotFoundException(className);
+        }
+
+        InputStream is = url.openStream();
+
+        try {
+            return IOUtil.getBytesFromStream(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private synchronized List<SmartURLClassPath> getCodeSources(ClassLoader loader) {
+        List<SmartURLClassPath> sources = loader == null ? rootCodeSources : codeSources.get(loader);
+        return sources == null ? new ArrayList<SmartURLClassPath>() : new ArrayList<SmartURLClassPath>(sources);
+    }
+
+    public synchronized int getPoolCount() {
+        return pools.size() + 1;
+    }
+
+    public synchronized int getCachedClassCount() {
+        int count = root.getCachedCount();
+        for ( ManagedPool pool : pools.values() ) {
+            count += pool.getCachedCount();
+        }
+        return count;
+    }
+
+    public synchronized long getScopeCount() {
+        return scopes;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        Set<SmartURLClassPath> sources = new HashSet<SmartURLClassPath>(rootCodeSources);
+        for ( List<SmartURLClassPath> l : codeSources.values() ) {
+            sources.addAll(l);
+        }
+
+        long hits = 0;
+        long misses = 0;
+        for ( SmartURLClassPath cp : sources ) {
+            hits += cp.getHits();
+            misses += cp.getMisses();
+        }
+
+        return getPoolCount() + " pools, " + getCachedClassCount() + " classes cached, "
+                + scopes + " scopes opened, " + evictions + " evictions, "
+                + sources.size() + " code sources (" + hits + " hits, " + misses + " misses)";
+    }
+
+    private synchronized void closed(ClassLoader loader) {
+
+        if ( root.getCachedCount() > limit ) {
+            AgentLogger.debug("Clearing the system class pool (" + root.getCachedCount() + " classes)");
+            root = newRoot();
+            pools.clear();
+            evictions++;
+            return;
+        }
+
+        ManagedPool pool = loader == null ? null : pools.get(loader);
+
+        if ( pool != null && pool.getCachedCount() > limit ) {
+            AgentLogger.debug("Clearing the class pool for " + loader + " (" + pool.getCachedCount() + " classes)");
+            pools.put(loader, newPool(loader));
+            evictions++;
+        }
+    }
+
+    private synchronized ManagedPool newRoot() {
+
+        ManagedPool pool = new ManagedPool(null);
+        pool.appendSystemPath();
+
+        for ( SmartURLClassPath cp : rootCodeSources ) {
+            pool.appendClassPath(cp);
+        }
+
+        return pool;
+    }
+
+    private ManagedPool newPool(ClassLoader loader) {
+        return newPool(root, loader);
+    }
+
+    private synchronized ManagedPool newPool(ClassPool root, ClassLoader loader) {
+
+        ManagedPool pool = new ManagedPool(root);
+        pool.appendClassPath(new LoaderClassPath(loader));
+
+        List<SmartURLClassPath> sources = codeSources.get(loader);
+
+        if ( sources != null ) {
+            for ( SmartURLClassPath cp : sources ) {
+                pool.appendClassPath(cp);
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * A pool that can say how much it's holding on to.
+     */
+    static class ManagedPool extends ClassPool {
+
+        ManagedPool(ClassPool parent) {
+            super(parent);
+        }
+
+        int getCachedCount() {
+            return classes.size();
+        }
+    }
+
+    /**
+     * Pools belonging to one worker thread. Nothing in them is shared with
+     * the other workers or with the shared pools.
+     */
+    public class Worker {
+
+        private ManagedPool root;
+        private final Map<ClassLoader,ManagedPool> pools = new HashMap<ClassLoader,ManagedPool>();
+
+        Worker(ManagedPool root) {
+            this.root = root;
+        }
+
+        /**
+         * Starts a job on a class the loader defined, in this worker's
+         * pools. The scope has to be closed when the job's done.
+         */
+        public Scope openScope(ClassLoader loader) {
+
+            ClassPool parent = root;
+
+            if ( loader != null ) {
+                ManagedPool pool = pools.get(loader);
+                if ( pool == null ) {
+                    pool = newPool(root, loader);
+                    pools.put(loader, pool);
+                }
+                parent = pool;
+            }
+
+            synchronized(ClassPools.this) {
+                scopes++;
+            }
+
+            return new Scope(parent, loader, this);
+        }
+
+        private void closed(ClassLoader loader) {
+
+            if ( root.getCachedCount() > limit ) {
+                root = newRoot();
+                pools.clear();
+                return;
+            }
+
+            ManagedPool pool = loader == null ? null : pools.get(loader);
+
+            if ( pool != null && pool.getCachedCount() > limit ) {
+                pools.put(loader, newPool(root, loader));
+            }
+        }
+
+        public void close() {
+            pools.clear();
+            root = null;
+        }
+    }
+
+    /**
+     * A pool for one job. Classes loaded into it with load() come from the
+     * given bytes rather than the shared pools, and everything it holds
+     * is dropped when it's closed.
+     */
+    public class Scope extends ClassPool {
+
+        private final ClassLoader loader;
+        private final Worker worker;
+
+        Scope(ClassPool parent, ClassLoader loader, Worker worker) {
+            super(parent);
+            this.loader = loader;
+            this.worker = worker;
+        }
+
+        /**
+         * @param bytes the class file to use, or null to read the class's
+         *              own from its loader
+         */
+        public CtClass load(String className, byte[] bytes) throws NotFoundException, IOException {
+
+            if ( bytes == null ) {
+                bytes = getClassfile(loader, className);
+            }
+
+            insertClassPath(new ByteArrayClassPath(className, bytes));
+
+            childFirstLookup = true;
+            try {
+                return get(className);
+            } finally {
+                childFirstLookup = false;
+            }
+        }
+
+        public void close() {
+            classes.clear();
+            if ( worker != null ) {
+                worker.closed(loader);
+            } else {
+                closed(loader);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.agent.AgentLogger;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of where the target's classes came from (their code source
+ * URLs and class loaders) so the class pools can find their class files.
+ *
+ * It hears about classes from the class index, so there's only the one
+ * pass over what's already loaded and one thing watching for new classes.
+ */
+public class CodeSourceTracker implements LoadedClassIndex.Listener {
+
+    private final LoadedClassIndex index;
+    private final ClassPools pools;
+
+    private final Map<URL,SmartURLClassPath> urlSources = new HashMap<URL,SmartURLClassPath>();
+
+    // the UI reorders this list to try the last loader that worked first
+    private final List<ClassLoader> loaders = Collections.synchronizedList(new ArrayList<ClassLoader>());
+    private final Set<ClassLoader> knownLoaders = Collections.newSetFromMap(new IdentityHashMap<ClassLoader,Boolean>());
+
+    /**
+     * Starts listening to the index, which mustn't have been started yet.
+     */
+    public CodeSourceTracker(LoadedClassIndex index, ClassPools pools) {
+        this.index = index;
+        this.pools = pools;
+        index.addListener(this);
+    }
+
+    /**
+     * Adds the sources of the classes loaded since the last update. Waits
+     * for the first scan if it's still going.
+     */
+    public void update() {
+        index.update();
+    }
+
+    public synchronized List<URL> getURLs() {
+        return new ArrayList<URL>(urlSources.keySet());
+    }
+
+    public List<ClassLoader> getClassLoaders() {
+        return loaders;
+    }
+
+    public void added(Class c) {
+
+        ProtectionDomain domain;
+
+        try {
+            domain = c.getProtectionDomain();
+        } catch (SecurityException e) {
+            domain = null;
+        }
+
+        add(c.getClassLoader(), c.getName(), domain);
+    }
+
+    private synchronized void add(ClassLoader loader, String name, ProtectionDomain domain) {
+
+        CodeSource cs = domain != null ? domain.getCodeSource() : null;
+
+        if ( cs != null && cs.getLocation() != null ) {
+            URL url = cs.getLocation();
+            SmartURLClassPath cp = urlSources.get(url);
+            if ( cp == null ) {
+                cp = new SmartURLClassPath(url);
+                urlSources.put(url, cp);
+                AgentLogger.debug("Adding " + url.toExternalForm()  + " to classpath lookup");
+            }
+            cp.addClass(name);
+            pools.addCodeSource(loader, cp);
+        }
+
+        if ( loader != null && knownLoaders.add(loader) ) {
+            loaders.add(loader);
+        }
+    }
+}
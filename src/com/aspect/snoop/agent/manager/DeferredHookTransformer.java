@@ -0,0 +1,542 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.DeferredHook;
+import com.aspect.snoop.FunctionHook;
+import com.aspect.snoop.agent.AgentLogger;
+import com.aspect.snoop.util.Hook2JavaUtil;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.reflect.AccessibleObject;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javassist.CtBehavior;
+import javassist.CtClass;
+
+/**
+ * Instruments classes that have hooks waiting on them as they're defined,
+ * so they never need to be loaded early or redefined afterwards.
+ *
+ * There's no Class to work with while a class is being defined, and loading
+ * the methods' types from inside the definition could mean loading the class
+ * itself, or deadlocking with another loader. So everything is compiled from
+ * the names of the types, the methods are registered by name, and the hooks
+ * are left without a class. Once the class is defined, resolve() fills those
+ * in, keeping the ids the injected code was compiled with.
+ *
+ * This is also the only chance to wrap a method (see WrappedMethods), so
+ * hooks that ask for it get it here, and the class's history starts from
+ * the wrapped version rather than the class file.
+ */
+public class DeferredHookTransformer implements ClassFileTransformer {
+
+    // the fingerprint suffix the unhooked version of a wrapped class is cached under
+    private static final String UNHOOKED = "/unhooked";
+
+    // class name -> the hooks waiting on it. copied on write so the
+    // transformer can check it without locking
+    private volatile Map<String,List<DeferredHook>> waiting = new HashMap<String,List<DeferredHook>>();
+
+    // classes we've instrumented as they loaded
+    private final List<LoadedClass> loaded = new ArrayList<LoadedClass>();
+
+    private final Object resolveLock = new Object();
+
+    private final ClassPools pools;
+    private final InstrumentedClassCache cache;
+    private final LoadedClassIndex index;
+
+    private volatile boolean directBytecode;
+
+    public DeferredHookTransformer(ClassPools pools, InstrumentedClassCache cache, LoadedClassIndex index) {
+        this.pools = pools;
+        this.cache = cache;
+        this.index = index;
+    }
+
+    public void setDirectBytecode(boolean directBytecode) {
+        this.directBytecode = directBytecode;
+    }
+
+    /**
+     * Replaces the set of hooks waiting on their classes. Hooks that have
+     * already been resolved are skipped.
+     */
+    public synchronized void setHooks(Collection<DeferredHook> hooks) {
+
+        Map<String,List<DeferredHook>> m = new HashMap<String,List<DeferredHook>>();
+
+        for ( DeferredHook hook : hooks ) {
+
+            if ( hook.isResolved() ) {
+                continue;
+            }
+
+            List<DeferredHook> forClass = m.get(hook.getClassName());
+
+            if ( forClass == null ) {
+                forClass = new ArrayList<DeferredHook>();
+                m.put(hook.getClassName(), forClass);
+            }
+
+            forClass.add(hook);
+        }
+
+        waiting = m;
+    }
+
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+
+        if ( classBeingRedefined != null || className == null || waiting.isEmpty() ) {
+            return null;
+        }
+
+        String name = className.replace('/', '.');
+
+        if ( ! waiting.containsKey(name) ) {
+            return null;
+        }
+
+        List<DeferredHook> hooks = claim(name);
+
+        if ( hooks == null ) {
+            return null;
+        }
+
+        try {
+
+            return instrument(loader, name, classfileBuffer, hooks);
+
+        } catch (Throwable t) {
+            AgentLogger.warn("Couldn't instrument " + name + " as it loaded, its hooks will go in the next time they're applied", t);
+        }
+
+        return null;
+    }
+
+    /*
+     * Takes the class's hooks off the waiting list, so only one loader gets
+     * them. The work itself is done without holding the lock, since it can
+     * load other classes.
+     */
+    private synchronized List<DeferredHook> claim(String name) {
+
+        List<DeferredHook> hooks = waiting.get(name);
+
+        if ( hooks != null ) {
+            Map<String,List<DeferredHook>> m = new HashMap<String,List<DeferredHook>>(waiting);
+            m.remove(name);
+            waiting = m;
+        }
+
+        return hooks;
+    }
+
+    private byte[] instrument(ClassLoader loader, String name, byte[] original, List<DeferredHook> hooks) throws Exception {
+
+        // group the hooks by method, like ClassChanges does
+        Map<String,List<DeferredHook>> hooksBySignature = new LinkedHashMap<String,List<DeferredHook>>();
+
+        for ( DeferredHook deferred : hooks ) {
+
+            String signature = MethodDescriptor.getSignature(deferred.getHook().getMethodName(), getTypeNames(deferred));
+
+            if ( ! hooksBySignature.containsKey(signature) ) {
+                hooksBySignature.put(signature, new ArrayList<DeferredHook>());
+            }
+
+            hooksBySignature.get(signature).add(deferred);
+        }
+
+        List<List<DeferredHook>> groups = new ArrayList<List<DeferredHook>>();
+        List<MethodChanges> changes = new ArrayList<MethodChanges>();
+
+        for ( String signature : hooksBySignature.keySet() ) {
+
+            List<DeferredHook> methodHooks = hooksBySignature.get(signature);
+
+            // one method's hooks failing doesn't keep the others out
+            try {
+                changes.add(prepare(loader, name, signature, methodHooks));
+                groups.add(methodHooks);
+            } catch (RuntimeException e) {
+                AgentLogger.warn("Couldn't generate the hooks on " + name + "." + signature + ", they'll go in the next time they're applied", e);
+            }
+        }
+
+        if ( changes.isEmpty() ) {
+            return null;
+        }
+
+        String fingerprint = MethodChanges.getFingerprint(changes.toArray(new MethodChanges[changes.size()]), true);
+
+        boolean wrapping = false;
+        for ( MethodChanges change : changes ) {
+            wrapping |= change.isWrapped();
+        }
+
+        byte[] newByteCode = cache.get(loader, name, original, fingerprint);
+
+        // wrapping gives the class new methods for good, so going back to
+        // the original means going back to the wrappers without the hooks
+        byte[] unhooked = original;
+
+        if ( newByteCode != null && wrapping ) {
+            unhooked = cache.get(loader, name, original, fingerprint + UNHOOKED);
+            if ( unhooked == null ) {
+                newByteCode = null;
+            }
+        }
+
+        if ( newByteCode == null ) {
+
+            ClassPools.Scope cp = pools.openScope(loader);
+
+            try {
+                // drops the methods that couldn't be instrumented
+                byte[][] compiled = compile(cp, name, original, groups, changes);
+                unhooked = compiled[0];
+                newByteCode = compiled[1];
+            } finally {
+                cp.close();
+            }
+
+            if ( changes.isEmpty() ) {
+                return null;
+            }
+
+            // cached under what actually went in, which is what a later
+            // load with the same hooks will find if nothing fails this time
+            fingerprint = MethodChanges.getFingerprint(changes.toArray(new MethodChanges[changes.size()]), true);
+            wrapping = unhooked != original;
+
+            cache.put(loader, name, original, fingerprint, newByteCode);
+
+            if ( wrapping ) {
+                cache.put(loader, name, original, fingerprint + UNHOOKED, unhooked);
+            }
+        }
+
+        List<DeferredHook> instrumented = new ArrayList<DeferredHook>();
+
+        for ( List<DeferredHook> methodHooks : groups ) {
+            instrumented.addAll(methodHooks);
+        }
+
+        synchronized(loaded) {
+            // once loaded, the class is compared the way loaded classes are
+            MethodChanges[] all = changes.toArray(new MethodChanges[changes.size()]);
+            LoadedClass lc = new LoadedClass(loader, name, unhooked, newByteCode, MethodChanges.getFingerprint(all), instrumented);
+            lc.wrapped = unhooked != original;
+            loaded.add(lc);
+        }
+
+        AgentLogger.info("Instrumented " + name + " as it loaded");
+
+        return newByteCode;
+    }
+
+    /*
+     * Registers one method's hooks and generates their code, all from the
+     * names of the method's types.
+     */
+    private MethodChanges prepare(ClassLoader loader, String name, String signature, List<DeferredHook> methodHooks) {
+
+        List<FunctionHook> functionHooks = new ArrayList<FunctionHook>();
+
+        for ( DeferredHook deferred : methodHooks ) {
+
+            FunctionHook hook = deferred.getHook();
+
+            // stand-ins until resolve() sets the real types. the conditions
+            // only care which parameters are primitives or strings
+            String[] typeNames = getTypeNames(deferred);
+            Class[] types = new Class[typeNames.length];
+
+            for ( int i=0; i<types.length; i++ ) {
+                types[i] = getStandInType(typeNames[i]);
+            }
+
+            hook.setParameterTypes(types);
+            hook.setReturnType(getStandInType(deferred.getReturnTypeName().trim()));
+
+            // publish what the injected code will see before it can run
+            HookRegistry.register(hook);
+            functionHooks.add(hook);
+        }
+
+        DeferredHook first = methodHooks.get(0);
+
+        int id = MethodRegistry.registerDeferred(loader, name, first.getHook().getMethodName(), getTypeNames(first), first.getReturnTypeName().trim());
+
+        return Hook2JavaUtil.hooks2Java(id, new MethodChanges(null, signature), functionHooks, directBytecode);
+    }
+
+    /*
+     * Returns the class with its methods wrapped but not hooked, and then
+     * with them hooked as well. A method that can't be found or compiled is
+     * left alone and taken out of the lists, along with its hooks.
+     */
+    private byte[][] compile(ClassPools.Scope cp, String name, byte[] original, List<List<DeferredHook>> groups, List<MethodChanges> changes) throws Exception {
+
+        CtClass cls = cp.load(name, original);
+
+        cls.defrost();
+
+        List<CtBehavior> behaviors = new ArrayList<CtBehavior>();
+        boolean wrapped = false;
+
+        for ( int i=0; i<groups.size(); ) {
+
+            DeferredHook deferred = groups.get(i).get(0);
+
+            try {
+
+                String[] typeNames = getTypeNames(deferred);
+                CtClass[] ctTypes = new CtClass[typeNames.length];
+
+                for ( int j=0; j<typeNames.length; j++ ) {
+                    ctTypes[j] = cp.get(typeNames[j]);
+                }
+
+                CtBehavior behavior;
+
+                if ( deferred.getHook().isConstructor() ) {
+                    behavior = cls.getDeclaredConstructor(ctTypes);
+                } else {
+                    behavior = cls.getDeclaredMethod(deferred.getHook().getMethodName(), ctTypes);
+                }
+
+                wrapped |= WrappedMethods.wrap(behavior, changes.get(i), true);
+                behaviors.add(behavior);
+                i++;
+
+            } catch (Exception e) {
+                AgentLogger.warn("Couldn't find hooked method " + deferred.getHook().getMethodName() + " on " + name + " as it loaded", e);
+                groups.remove(i);
+                changes.remove(i);
+            }
+        }
+
+        byte[] unhooked = original;
+
+        if ( wrapped ) {
+            unhooked = cls.toBytecode();
+            cls.defrost();
+        }
+
+        for ( int i=0; i<behaviors.size(); ) {
+            try {
+                InstrumentationManager.apply(behaviors.get(i), changes.get(i), name, true);
+                i++;
+            } catch (Exception e) {
+                AgentLogger.warn("Couldn't instrument " + behaviors.get(i).getLongName() + " as it loaded", e);
+                behaviors.remove(i);
+                groups.remove(i);
+                changes.remove(i);
+            }
+        }
+
+        byte[] newByteCode = cls.toBytecode();
+        cls.detach();
+
+        return new byte[][] { unhooked, newByteCode };
+    }
+
+    private static String[] getTypeNames(DeferredHook deferred) {
+
+        String[] typeNames = deferred.getParameterTypeNames();
+        String[] trimmed = new String[typeNames.length];
+
+        for ( int i=0; i<typeNames.length; i++ ) {
+            trimmed[i] = typeNames[i].trim();
+        }
+
+        return trimmed;
+    }
+
+    private static Class getStandInType(String type) {
+
+        Class c = MethodDescriptor.getPrimitive(type);
+
+        if ( c != null ) {
+            return c;
+        }
+
+        return String.class.getName().equals(type) ? String.class : Object.class;
+    }
+
+    /*
+     * Gives the hook its real types, looked up through the loader of the
+     * class it's on.
+     */
+    private static Class[] setTypes(DeferredHook deferred, ClassLoader loader) throws ClassNotFoundException {
+
+        String[] typeNames = getTypeNames(deferred);
+        Class[] types = new Class[typeNames.length];
+
+        for ( int i=0; i<types.length; i++ ) {
+            types[i] = MethodDescriptor.forName(typeNames[i], loader);
+        }
+
+        FunctionHook hook = deferred.getHook();
+        hook.setParameterTypes(types);
+        hook.setReturnType(MethodDescriptor.forName(deferred.getReturnTypeName().trim(), loader));
+
+        return types;
+    }
+
+    /**
+     * Resolves a hook whose class was already loaded by the time we heard
+     * about it, so it can be put in the normal way.
+     * @return whether the hook could be resolved
+     */
+    static boolean resolve(DeferredHook deferred, Class c) {
+
+        try {
+
+            setTypes(deferred, c.getClassLoader());
+            deferred.getHook().setClazz(c);
+
+            return true;
+
+        } catch (ClassNotFoundException e) {
+            AgentLogger.warn("Couldn't resolve hook on " + deferred.getClassName(), e);
+        } catch (LinkageError e) {
+            AgentLogger.warn("Couldn't resolve hook on " + deferred.getClassName(), e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Fills in the classes and methods of the hooks whose classes have
+     * finished loading. Safe to call from any thread.
+     */
+    public void resolve() {
+
+        List<LoadedClass> classes;
+
+        synchronized(loaded) {
+            classes = new ArrayList<LoadedClass>(loaded);
+        }
+
+        synchronized(resolveLock) {
+
+            for ( LoadedClass lc : classes ) {
+
+                if ( lc.clazz != null ) {
+                    continue;
+                }
+
+                // the class the loader defined from our bytes, not one it
+                // might find by asking its parents
+                Class c = index.getDefinedClass(lc.name, lc.loader);
+
+                if ( c == null ) {
+                    // not done loading yet
+                    continue;
+                }
+
+                for ( DeferredHook deferred : lc.hooks ) {
+
+                    FunctionHook hook = deferred.getHook();
+
+                    try {
+
+                        // the class is defined now, so its types can be loaded
+                        Class[] types = setTypes(deferred, c.getClassLoader());
+
+                        AccessibleObject method;
+
+                        if ( hook.isConstructor() ) {
+                            method = c.getDeclaredConstructor(types);
+                        } else {
+                            method = c.getDeclaredMethod(hook.getMethodName(), types);
+                        }
+
+                        // hands back the id the injected code already uses
+                        MethodRegistry.register(c, method);
+
+                        hook.setClazz(c);
+                        HookRegistry.update(hook);
+
+                    } catch (ClassNotFoundException e) {
+                        AgentLogger.error("Couldn't find a type of hooked method " + hook.getMethodName() + " on " + lc.name, e);
+                    } catch (NoSuchMethodException e) {
+                        AgentLogger.error("Couldn't find hooked method on " + lc.name, e);
+                    } catch (LinkageError e) {
+                        AgentLogger.error("Couldn't load a type of hooked method " + hook.getMethodName() + " on " + lc.name, e);
+                    }
+                }
+
+                lc.clazz = c;
+            }
+        }
+    }
+
+    /**
+     * @return the classes that were instrumented as they loaded and have
+     *         since been resolved, each returned only once
+     */
+    List<LoadedClass> takeResolved() {
+
+        List<LoadedClass> resolved = new ArrayList<LoadedClass>();
+
+        synchronized(loaded) {
+            for ( int i=loaded.size()-1; i>=0; i-- ) {
+                if ( loaded.get(i).clazz != null ) {
+                    resolved.add(0, loaded.remove(i));
+                }
+            }
+        }
+
+        return resolved;
+    }
+
+    static class LoadedClass {
+
+        final ClassLoader loader;
+        final String name;
+        final byte[] originalByteCode;
+        final byte[] newByteCode;
+        final String fingerprint;
+        final List<DeferredHook> hooks;
+
+        // whether originalByteCode is a wrapped version of the class file
+        boolean wrapped;
+
+        volatile Class clazz;
+
+        LoadedClass(ClassLoader loader, String name, byte[] originalByteCode, byte[] newByteCode, String fingerprint, List<DeferredHook> hooks) {
+            this.loader = loader;
+            this.name = name;
+            this.originalByteCode = originalByteCode;
+            this.newByteCode = newByteCode;
+            this.fingerprint = fingerprint;
+            this.hooks = hooks;
+        }
+    }
+}
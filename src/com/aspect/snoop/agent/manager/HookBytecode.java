@@ -0,0 +1,220 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import java.util.Arrays;
+import javassist.CannotCompileException;
+import javassist.CtBehavior;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.Opcode;
+
+/**
+ * The bytecode form of what Hook2JavaUtil generates as source for the
+ * hooks on a method: pick the hooks that fire into a bit mask, then make
+ * one call into the HookDispatcher on the way in and one on the way out.
+ *
+ * Conditions aren't compiled into the method here; the dispatcher checks
+ * them, as it does for conditions the source can't inline. A sampled hook
+ * with conditions asks HookSampler.sample(id, $args) so calls that don't
+ * match don't use up its samples.
+ */
+public class HookBytecode extends BytecodeChanges {
+
+    /** The hook fires on every call while it's enabled. */
+    public static final int ALWAYS = 0;
+    /** The hook fires when its sampler says so. */
+    public static final int SAMPLED = 1;
+    /** The hook fires when its conditions are met and its sampler says so. */
+    public static final int CONDITIONAL = 2;
+
+    private final int methodId;
+    private final int[] hookIds;
+    private final int[] bits;
+    private final int[] tests;
+    private final int entryMask;
+    private final int exitMask;
+    private final boolean tamperParameters;
+
+    /**
+     * @param hookIds the hooks that do anything in the dispatcher
+     * @param bits each hook's bit in the mask
+     * @param tests each hook's test: ALWAYS, SAMPLED or CONDITIONAL
+     */
+    public HookBytecode(int methodId, int[] hookIds, int[] bits, int[] tests, int entryMask, int exitMask, boolean tamperParameters) {
+        this.methodId = methodId;
+        this.hookIds = hookIds;
+        this.bits = bits;
+        this.tests = tests;
+        this.entryMask = entryMask;
+        this.exitMask = exitMask;
+        this.tamperParameters = tamperParameters;
+    }
+
+    public boolean isEmpty() {
+        return hookIds.length == 0;
+    }
+
+    public void apply(CtBehavior method) throws CannotCompileException {
+
+        if ( isEmpty() ) {
+            return;
+        }
+
+        Target target = new Target(method);
+
+        int fired = target.newLocal("I");
+
+        Bytecode b = target.newBytecode();
+
+        // fired = 0; if ( HookRegistry.isEnabled(id) && test ) fired |= bit; ...
+        b.addIconst(0);
+        b.addIstore(fired);
+
+        for ( int i = 0; i < hookIds.length; i++ ) {
+
+            b.addIconst(hookIds[i]);
+            b.addInvokestatic("com.aspect.snoop.agent.manager.HookRegistry", "isEnabled", "(I)Z");
+            int disabled = ifeq(b);
+            int skipped = -1;
+
+            if ( tests[i] == SAMPLED ) {
+                b.addIconst(hookIds[i]);
+                b.addInvokestatic("com.aspect.snoop.agent.manager.HookSampler", "sample", "(I)Z");
+                skipped = ifeq(b);
+            } else if ( tests[i] == CONDITIONAL ) {
+                b.addIconst(hookIds[i]);
+                target.pushArgs(b);
+                b.addInvokestatic("com.aspect.snoop.agent.manager.HookSampler", "sample", "(I[Ljava/lang/Object;)Z");
+                skipped = ifeq(b);
+            }
+
+            b.addIload(fired);
+            b.addIconst(bits[i]);
+            b.addOpcode(Opcode.IOR);
+            b.addIstore(fired);
+
+            land(b, disabled);
+            if ( skipped != -1 ) {
+                land(b, skipped);
+            }
+        }
+
+        if ( entryMask != 0 ) {
+
+            // if ( (fired & entryMask) != 0 ) mods = HookDispatcher.enter(id, fired, $args);
+            b.addIload(fired);
+            b.addIconst(entryMask);
+            b.addOpcode(Opcode.IAND);
+            int notFired = ifeq(b);
+
+            b.addIconst(methodId);
+            b.addIload(fired);
+            target.pushArgs(b);
+            b.addInvokestatic("com.aspect.snoop.agent.manager.HookDispatcher", "enter", "(II[Ljava/lang/Object;)[Ljava/lang/Object;");
+
+            if ( tamperParameters && target.getParameterCount() > 0 ) {
+
+                // if ( mods != null ) { $1 = mods[0]; ... }
+                int mods = target.newLocal("[Ljava/lang/Object;");
+                b.addAstore(mods);
+                b.addAload(mods);
+                int noMods = branch(b, Opcode.IFNULL);
+
+                for ( int i = 0; i < target.getParameterCount(); i++ ) {
+                    b.addAload(mods);
+                    b.addIconst(i);
+                    b.addOpcode(Opcode.AALOAD);
+                    target.storeParameter(b, i);
+                }
+
+                land(b, noMods);
+
+            } else {
+                b.addOpcode(Opcode.POP);
+            }
+
+            land(b, notFired);
+        }
+
+        target.insertAtStart(b);
+
+        if ( exitMask != 0 ) {
+            target.insertBeforeReturns(getExitCode(target, fired));
+        }
+
+        target.finish();
+    }
+
+    /*
+     * if ( (fired & exitMask) != 0 ) $_ = HookDispatcher.exit(id, fired, $args, $_);
+     */
+    private Bytecode getExitCode(Target target, int fired) {
+
+        Bytecode b = target.newBytecode();
+        String type = target.getReturnType();
+        boolean isVoid = "V".equals(type);
+
+        int result = -1;
+
+        if ( ! isVoid ) {
+            result = target.newLocal(type);
+            store(b, type, result);
+        }
+
+        b.addIload(fired);
+        b.addIconst(exitMask);
+        b.addOpcode(Opcode.IAND);
+        int notFired = ifeq(b);
+
+        b.addIconst(methodId);
+        b.addIload(fired);
+        target.pushArgs(b);
+
+        if ( isVoid ) {
+            b.addOpcode(Opcode.ACONST_NULL);
+        } else {
+            load(b, type, result);
+            box(b, type);
+        }
+
+        b.addInvokestatic("com.aspect.snoop.agent.manager.HookDispatcher", "exit", "(II[Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+
+        if ( isVoid ) {
+            b.addOpcode(Opcode.POP);
+        } else {
+            unbox(b, type);
+            store(b, type, result);
+        }
+
+        land(b, notFired);
+
+        if ( ! isVoid ) {
+            load(b, type, result);
+        }
+
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        return "hooks " + methodId + " " + Arrays.toString(hookIds) + " " + Arrays.toString(bits)
+                + " " + Arrays.toString(tests) + " " + entryMask + " " + exitMask + " " + tamperParameters;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.agent.SnoopAgent;
+import com.aspect.snoop.agent.event.EventPipeline;
+import com.aspect.snoop.agent.event.InvocationEvent;
+import com.aspect.snoop.agent.event.StackCapture;
+import com.aspect.snoop.ui.JavaSnoopView;
+
+/**
+ * The single entry point the instrumented methods call into. Each hooked
+ * method is registered with the MethodRegistry when it's instrumented, and
+ * its id maps to the ids of every hook attached to the method, so one call
+ * on the way in (and one on the way out, if anything tampers with the
+ * return value) is enough to run all of them.
+ *
+ * Like the HookRegistry, the table is copied on write so the application
+ * threads can read it without locking.
+ */
+public class HookDispatcher {
+
+    /**
+     * How many hooks a method can have. The injected code tells the
+     * dispatcher which of them fired with one bit each in an int.
+     */
+    public static final int MAX_HOOKS_PER_METHOD = 32;
+
+    private static final Object lock = new Object();
+
+    private static volatile int[][] methods = new int[32][];
+
+    /**
+     * Records which hooks are attached to a method, replacing whatever was
+     * there from the last time it was instrumented.
+     * @param methodId the MethodRegistry id of the method
+     * @param hookIds the HookRegistry ids of the hooks on the method
+     */
+    public static void setHookIds(int methodId, int[] hookIds) {
+
+        synchronized(lock) {
+
+            int[][] current = methods;
+            int len = current.length;
+
+            while ( methodId >= len ) {
+                len *= 2;
+            }
+
+            int[][] copy = new int[len][];
+            System.arraycopy(current, 0, copy, 0, current.length);
+            copy[methodId] = hookIds.clone();
+
+            methods = copy;
+        }
+    }
+
+    /**
+     * @return the ids of the hooks attached to the method, or null if the
+     *         method id isn't known
+     */
+    public static int[] getHookIds(int methodId) {
+        int[][] current = methods;
+        if ( methodId < 0 || methodId >= current.length ) {
+            return null;
+        }
+        return current[methodId];
+    }
+
+    /**
+     * Runs the entry actions of every enabled hook on the method that the
+     * injected code picked and whose conditions are met.
+     * @param fired the hooks picked by the injected code, as a bit mask
+     * @return the new parameters if any hook tampered with them, otherwise
+     *         null
+     */
+    public static Object[] enter(int methodId, int fired, Object[] args) {
+
+        int[] hookIds = getHookIds(methodId);
+        MethodDescriptor method = MethodRegistry.get(methodId);
+        JavaSnoopView view = SnoopAgent.getMainView();
+
+        if ( hookIds == null || method == null || view == null ) {
+            return null;
+        }
+
+        String className = method.getClassName();
+        Class[] types = method.getParameterTypes();
+
+        Object[] mods = null;
+
+        for ( int i=0; i<hookIds.length && i<MAX_HOOKS_PER_METHOD; i++ ) {
+
+            if ( (fired & (1 << i)) == 0 ) {
+                continue;
+            }
+
+            HookSnapshot hook = HookRegistry.get(hookIds[i]);
+
+            if ( hook == null || ! HookRegistry.isEnabled(hook.getId()) || ! hook.areConditionsMet(args) ) {
+                continue;
+            }
+
+            if ( hook.shouldPrintParameters() ) {
+                EventPipeline.publish(InvocationEvent.parameters(hook, methodId, args));
+            }
+
+            if ( hook.shouldPrintStackTrace() ) {
+                // skip this method and the hooked method itself
+                StackTraceElement[] stack = StackCapture.capture(2);
+                EventPipeline.publish(InvocationEvent.stackTrace(hook, methodId, stack));
+            }
+
+            if ( hook.shouldPause() ) {
+                view.pause(className, hook, args, types);
+            }
+
+            if ( hook.shouldTamperParameters() ) {
+                args = view.tamperWithParameters(className, hook, args, types);
+                mods = args;
+            }
+        }
+
+        return mods;
+    }
+
+    /**
+     * Lets every enabled hook on the method that the injected code picked
+     * and whose conditions are met tamper with the return value, in order.
+     * @param fired the hooks picked by the injected code, as a bit mask
+     * @return the (possibly new) return value
+     */
+    public static Object exit(int methodId, int fired, Object[] args, Object retVal) {
+
+        int[] hookIds = getHookIds(methodId);
+        MethodDescriptor method = MethodRegistry.get(methodId);
+        JavaSnoopView view = SnoopAgent.getMainView();
+
+        if ( hookIds == null || method == null || view == null ) {
+            return retVal;
+        }
+
+        String className = method.getClassName();
+        Class[] types = method.getParameterTypes();
+        Class retValType = method.getReturnType();
+
+        for ( int i=0; i<hookIds.length && i<MAX_HOOKS_PER_METHOD; i++ ) {
+
+            if ( (fired & (1 << i)) == 0 ) {
+                continue;
+            }
+
+            HookSnapshot hook = HookRegistry.get(hookIds[i]);
+
+            if ( hook == null || ! HookRegistry.isEnabled(hook.getId()) || ! hook.shouldTamperReturnValue() || ! hook.areConditionsMet(args) ) {
+                continue;
+            }
+
+            retVal = view.tamperWithReturnValue(className, hook, args, types, retVal, retValType);
+        }
+
+        return retVal;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.FunctionHook;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The lookup table the injected code uses to find the hook it was generated
+ * for. Every hook gets a small, dense id the first time it's installed and
+ * keeps it for the life of the agent, so the generated code can resolve its
+ * hook with a single array read instead of walking the GUI's table model.
+ *
+ * Writes (which only happen on install or when the user edits a hook) copy
+ * the table and publish it through a volatile field, so readers on the
+ * application threads never need to lock.
+ */
+public class HookRegistry {
+
+    private static final Object lock = new Object();
+
+    private static final Map<FunctionHook,Integer> ids = new IdentityHashMap<FunctionHook,Integer>();
+
+    private static volatile HookSnapshot[] snapshots = new HookSnapshot[32];
+
+    // every hook is compiled in whether it's enabled or not; this is what
+    // the injected code checks first, so flipping it needs no redefinition
+    private static volatile boolean[] switches = new boolean[32];
+
+    private static int nextId = 0;
+
+    /**
+     * Registers the hook if we haven't seen it before and publishes a fresh
+     * snapshot of its current settings.
+     * @return the id the injected code should use for this hook
+     */
+    public static int register(FunctionHook hook) {
+
+        synchronized(lock) {
+
+            Integer id = ids.get(hook);
+
+            if ( id == null ) {
+                id = nextId++;
+                ids.put(hook, id);
+            }
+
+            publish(new HookSnapshot(hook, id, get(id)));
+
+            return id;
+        }
+    }
+
+    /**
+     * Re-publishes the snapshot for a hook that's already been registered.
+     * Hooks that have never been installed are ignored, since there's no
+     * injected code that could be looking for them.
+     */
+    public static void update(FunctionHook hook) {
+
+        if ( hook == null ) {
+            return;
+        }
+
+        synchronized(lock) {
+            Integer id = ids.get(hook);
+            if ( id != null ) {
+                publish(new HookSnapshot(hook, id, get(id)));
+            }
+        }
+    }
+
+    /**
+     * Flips the hook's switch to match its enabled flag, without taking a
+     * new snapshot.
+     * @return false if the hook hasn't been installed, in which case there's
+     *         no injected code to switch on or off
+     */
+    public static boolean setEnabled(FunctionHook hook) {
+
+        synchronized(lock) {
+            Integer id = ids.get(hook);
+            if ( id == null ) {
+                return false;
+            }
+            setSwitch(id, hook.isEnabled());
+            return true;
+        }
+    }
+
+    /**
+     * Called from the application threads on every hooked invocation, before
+     * anything else about the hook is looked at.
+     */
+    public static boolean isEnabled(int id) {
+        boolean[] current = switches;
+        return id >= 0 && id < current.length && current[id];
+    }
+
+    /**
+     * Forgets about a hook. The id is never handed out again, so any
+     * injected code still referring to it will just find nothing.
+     */
+    public static void unregister(FunctionHook hook) {
+
+        synchronized(lock) {
+
+            Integer id = ids.remove(hook);
+
+            if ( id != null ) {
+                setSwitch(id, false);
+                HookSnapshot[] copy = snapshots.clone();
+                copy[id] = null;
+                snapshots = copy;
+            }
+        }
+    }
+
+    /**
+     * @return the id for the hook, or -1 if it hasn't been registered
+     */
+    public static int getId(FunctionHook hook) {
+        synchronized(lock) {
+            Integer id = ids.get(hook);
+            return id != null ? id : -1;
+        }
+    }
+
+    /**
+     * Called from the application threads on every hooked invocation.
+     * @return the current snapshot for the hook, or null if there isn't one
+     */
+    public static HookSnapshot get(int id) {
+        HookSnapshot[] current = snapshots;
+        if ( id < 0 || id >= current.length ) {
+            return null;
+        }
+        return current[id];
+    }
+
+    public static int size() {
+        synchronized(lock) {
+            return ids.size();
+        }
+    }
+
+    private static void publish(HookSnapshot snapshot) {
+
+        HookSnapshot[] current = snapshots;
+        int len = current.length;
+
+        while ( snapshot.getId() >= len ) {
+            len *= 2;
+        }
+
+        HookSnapshot[] copy = new HookSnapshot[len];
+        System.arraycopy(current, 0, copy, 0, current.length);
+        copy[snapshot.getId()] = snapshot;
+
+        snapshots = copy;
+
+        setSwitch(snapshot.getId(), snapshot.isEnabled());
+    }
+
+    private static void setSwitch(int id, boolean enabled) {
+
+        boolean[] current = switches;
+
+        if ( id >= current.length ) {
+            int len = current.length;
+            while ( id >= len ) {
+                len *= 2;
+            }
+            boolean[] copy = new boolean[len];
+            System.arraycopy(current, 0, copy, 0, current.length);
+            current = copy;
+        }
+
+        current[id] = enabled;
+
+        // the volatile write publishes the element to the readers
+        switches = current;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.FunctionHook.Sampling;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which of the calls that match a hook the hook actually fires for.
+ * The injected code asks this before it builds $args or calls into the
+ * dispatcher, so a call that's sampled out costs about as much as a counter
+ * bump.
+ *
+ * A sampler lives in the hook's snapshot and is carried over to the next
+ * snapshot as long as the sampling settings don't change, so editing other
+ * parts of a hook doesn't reset the counts.
+ */
+public abstract class HookSampler {
+
+    /**
+     * Called from the injected code.
+     * @return whether the hook should fire for this call
+     */
+    public static boolean sample(int hookId) {
+
+        HookSnapshot hook = HookRegistry.get(hookId);
+
+        if ( hook == null ) {
+            return false;
+        }
+
+        HookSampler sampler = hook.getSampler();
+
+        return sampler == null || sampler.take();
+    }
+
+    /**
+     * Called from the injected code when the hook's conditions couldn't be
+     * compiled into the method, so that calls that don't match don't use up
+     * the hook's samples.
+     * @return whether the hook should fire for this call
+     */
+    public static boolean sample(int hookId, Object[] args) {
+
+        HookSnapshot hook = HookRegistry.get(hookId);
+
+        if ( hook == null || ! hook.areConditionsMet(args) ) {
+            return false;
+        }
+
+        HookSampler sampler = hook.getSampler();
+
+        return sampler == null || sampler.take();
+    }
+
+    /**
+     * @return a sampler for the settings, or null if every call should fire
+     */
+    public static HookSampler create(Sampling sampling, int n) {
+
+        if ( sampling == null || n <= 0 ) {
+            return null;
+        }
+
+        switch (sampling) {
+            case OneInN: return n == 1 ? null : new OneInN(n);
+            case RateLimit: return new RateLimit(n);
+            case FirstN: return new FirstN(n);
+            default: return null;
+        }
+    }
+
+    /**
+     * @return whether this call gets through
+     */
+    public abstract boolean take();
+
+    /**
+     * Counts per thread so the threads calling a hot method don't all fight
+     * over one counter. The first call on each thread fires.
+     */
+    static final class OneInN extends HookSampler {
+
+        private final int n;
+
+        private final ThreadLocal<int[]> counters = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+
+        OneInN(int n) {
+            this.n = n;
+        }
+
+        public boolean take() {
+            int[] counter = counters.get();
+            if ( counter[0] == 0 ) {
+                counter[0] = n - 1;
+                return true;
+            }
+            counter[0]--;
+            return false;
+        }
+    }
+
+    /**
+     * A token bucket that refills at n tokens a second and holds up to a
+     * second's worth. It's kept as the time the bucket would next be full
+     * (the "generic cell rate" form), so taking a token is one CAS.
+     */
+    static final class RateLimit extends HookSampler {
+
+        private static final long SECOND = 1000000000L;
+
+        private final long interval;
+        private final long burst;
+
+        private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+
+        RateLimit(int perSecond) {
+            this.interval = Math.max(1, SECOND / perSecond);
+            this.burst = interval * perSecond;
+        }
+
+        public boolean take() {
+
+            long now = System.nanoTime();
+
+            while ( true ) {
+
+                long current = full.get();
+                long base = current == Long.MIN_VALUE || current < now ? now : current;
+                long next = base + interval;
+
+                if ( next - now > burst ) {
+                    return false;
+                }
+
+                if ( full.compareAndSet(current, next) ) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Once the hook has fired n times this is a single volatile read.
+     */
+    static final class FirstN extends HookSampler {
+
+        private final long n;
+        private final AtomicLong count = new AtomicLong();
+
+        FirstN(int n) {
+            this.n = n;
+        }
+
+        public boolean take() {
+            if ( count.get() >= n ) {
+                return false;
+            }
+            return count.incrementAndGet() <= n;
+        }
+    }
+}
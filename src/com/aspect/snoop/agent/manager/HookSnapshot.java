@@ -0,0 +1,224 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.Condition;
+import com.aspect.snoop.FunctionHook;
+import com.aspect.snoop.FunctionHook.Mode;
+import com.aspect.snoop.FunctionHook.Sampling;
+import com.aspect.snoop.util.ConditionUtil;
+import com.aspect.snoop.util.HookPredicate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable copy of the parts of a FunctionHook that the injected code
+ * needs at runtime. The GUI is free to keep editing the FunctionHook on the
+ * EDT; the application threads only ever see a consistent snapshot that
+ * was published through the HookRegistry.
+ */
+public class HookSnapshot {
+
+    private final FunctionHook hook;
+    private final int id;
+
+    private final Class clazz;
+    private final String methodName;
+    private final Class[] parameterTypes;
+    private final Class returnType;
+
+    private final boolean enabled;
+    private final Mode mode;
+    private final List<Condition> conditions;
+    private final HookPredicate predicate;
+
+    private final Sampling sampling;
+    private final int samplingValue;
+    private final HookSampler sampler;
+
+    private final boolean shouldPause;
+    private final boolean shouldTamperParameters;
+    private final boolean shouldTamperReturnValue;
+    private final boolean shouldPrintParameters;
+    private final boolean shouldPrintStackTrace;
+    private final boolean isOutputToConsole;
+    private final boolean isOutputToFile;
+    private final String outputFile;
+
+    public HookSnapshot(FunctionHook hook, int id) {
+        this(hook, id, null);
+    }
+
+    /**
+     * @param previous the snapshot this one replaces, if any. If the sampling
+     *                 settings haven't changed, its sampler (and its counts)
+     *                 carry over.
+     */
+    public HookSnapshot(FunctionHook hook, int id, HookSnapshot previous) {
+
+        this.hook = hook;
+        this.id = id;
+
+        this.clazz = hook.getClazz();
+        this.methodName = hook.getMethodName();
+        this.parameterTypes = hook.getParameterTypes().clone();
+        this.returnType = hook.getReturnType();
+
+        this.enabled = hook.isEnabled();
+        this.mode = hook.getMode();
+
+        // copy the conditions so later edits in the GUI can't be seen half-done
+        List<Condition> copy = new ArrayList<Condition>();
+        if ( hook.getConditions() != null ) {
+            for ( Condition c : hook.getConditions() ) {
+                copy.add( new Condition(c.isEnabled(), c.getOperator(), c.getParameter(), c.getOperand()) );
+            }
+        }
+        this.conditions = Collections.unmodifiableList(copy);
+        this.predicate = ConditionUtil.compile(mode, copy, parameterTypes);
+
+        this.sampling = hook.isSampled() ? hook.getSampling() : Sampling.None;
+        this.samplingValue = hook.isSampled() ? hook.getSamplingValue() : 0;
+
+        if ( previous != null && previous.sampling == sampling && previous.samplingValue == samplingValue ) {
+            this.sampler = previous.sampler;
+        } else {
+            this.sampler = HookSampler.create(sampling, samplingValue);
+        }
+
+        this.shouldPause = hook.shouldPause();
+        this.shouldTamperParameters = hook.shouldTamperParameters();
+        this.shouldTamperReturnValue = hook.shouldTamperReturnValue();
+        this.shouldPrintParameters = hook.shouldPrintParameters();
+        this.shouldPrintStackTrace = hook.shouldPrintStackTrace();
+        this.isOutputToConsole = hook.isOutputToConsole();
+        this.isOutputToFile = hook.isOutputToFile();
+        this.outputFile = hook.getOutputFile();
+    }
+
+    /**
+     * @return the live hook this snapshot was taken from
+     */
+    public FunctionHook getHook() {
+        return hook;
+    }
+
+    /**
+     * @return the dense id the injected code uses to find this hook
+     */
+    public int getId() {
+        return id;
+    }
+
+    public Class getClazz() {
+        return clazz;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public Class[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    public Class getReturnType() {
+        return returnType;
+    }
+
+    /**
+     * @return whether the hook was enabled when the snapshot was taken. The
+     *         switch in the HookRegistry can be flipped since, and is what
+     *         the injected code goes by.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * @return the mode and conditions, compiled when the snapshot was taken
+     */
+    public HookPredicate getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return whether the hook's conditions allow it to fire for these parameters
+     */
+    public boolean areConditionsMet(Object[] parameters) {
+        return predicate.matches(parameters);
+    }
+
+    public Sampling getSampling() {
+        return sampling;
+    }
+
+    public int getSamplingValue() {
+        return samplingValue;
+    }
+
+    /**
+     * @return the sampler, or null if the hook fires for every matching call
+     */
+    public HookSampler getSampler() {
+        return sampler;
+    }
+
+    public boolean shouldPause() {
+        return shouldPause;
+    }
+
+    public boolean shouldTamperParameters() {
+        return shouldTamperParameters;
+    }
+
+    public boolean shouldTamperReturnValue() {
+        return shouldTamperReturnValue;
+    }
+
+    public boolean shouldPrintParameters() {
+        return shouldPrintParameters;
+    }
+
+    public boolean shouldPrintStackTrace() {
+        return shouldPrintStackTrace;
+    }
+
+    public boolean isOutputToConsole() {
+        return isOutputToConsole;
+    }
+
+    public boolean isOutputToFile() {
+        return isOutputToFile;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+}
@@ -19,6 +19,8 @@
 
 package com.aspect.snoop.agent.manager;
 
+import com.aspect.snoop.DeferredHook;
+import com.aspect.snoop.JavaSnoop;
 import com.aspect.snoop.agent.AgentLogger;
 import com.aspect.snoop.util.ReflectionUtil;
 import java.io.IOException;
@@ -28,35 +30,47 @@ import java.lang.instrument.UnmodifiableClassException;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Method;
 import java.net.URL;
-import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import javassist.CannotCompileException;
-import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.NotFoundException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
-import javassist.ByteArrayClassPath;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import javassist.CtBehavior;
-import javassist.LoaderClassPath;
 
 public class InstrumentationManager {
 
-    private HashMap<Integer,ClassHistory> modifiedClasses;
+    private ClassHistoryStore modifiedClasses;
 
     private Instrumentation inst;
-    private List<ClassLoader> classloaders;
+    private ClassPools classPools;
+    private ClassBytesCache classBytes;
+    private InstrumentedClassCache instrumentedClasses;
+    private CodeSourceTracker codeSources;
+    private LoadedClassIndex classIndex;
+    private DeferredHookTransformer deferredHooks;
 
-    HashMap<URL, SmartURLClassPath> urlSources;
+    private volatile boolean directBytecode;
+
+    // below this many classes a thread's not worth starting
+    private static final int MIN_CLASSES_PER_THREAD = 8;
 
     public List<String> getLoadedClassesAsStrings() {
        
         List<String> classes = new ArrayList<String>();
-        for ( Class c  : inst.getAllLoadedClasses() ) {
-            if ( ! c.isArray() && ! c.isPrimitive() && ! c.isSynthetic() ) {
+        for ( Class c  : classIndex.getAllClasses() ) {
+            if ( ! c.isSynthetic() ) {
                 classes.add( c.getName() );
             }
         }
@@ -66,57 +80,126 @@ public class InstrumentationManager {
 
     public List<Class> getLoadedClasses() {
         List<Class> classes = new ArrayList<Class>();
-        for ( Class c  : inst.getAllLoadedClasses() ) {
-            if ( ! c.isArray() && ! c.isPrimitive() && ! c.isSynthetic() ) {
+        for ( Class c  : classIndex.getAllClasses() ) {
+            if ( ! c.isSynthetic() ) {
                 classes.add( c );
             }
         }
         return classes;
     }
 
-    public InstrumentationManager(Instrumentation inst) {
-        this.inst = inst;
-        this.modifiedClasses = new HashMap<Integer,ClassHistory>();
-        this.classloaders = new ArrayList<ClassLoader>();
-        this.urlSources = new HashMap<URL, SmartURLClassPath>();
+    /**
+     * @return every loaded class that extends or implements the given type
+     */
+    public List<Class> getSubtypes(Class clazz) {
+        return classIndex.getSubtypes(clazz);
+    }
 
-        updateClassPool();
+    /**
+     * @return whether hook dispatch code is written straight into methods
+     *         as bytecode rather than compiled from source
+     */
+    public boolean isDirectBytecode() {
+        return directBytecode;
     }
 
-    public List<URL> getCodeSourceURLs() {
-        List<URL> urls = new ArrayList<URL>();
-        for(URL u : urlSources.keySet()) {
-            urls.add(u);
-        }
-        return urls;
+    public void setDirectBytecode(boolean directBytecode) {
+        this.directBytecode = directBytecode;
+        this.deferredHooks.setDirectBytecode(directBytecode);
     }
 
-    public final void updateClassPool() {
+    /**
+     * Sets the hooks to put in as their classes are loaded.
+     */
+    public void setDeferredHooks(List<DeferredHook> hooks) {
+        deferredHooks.setHooks(hooks);
+    }
 
-        ClassPool classPool = ClassPool.getDefault();
+    /**
+     * Fills in the hooks on classes that were instrumented as they loaded.
+     * Safe to call from any thread.
+     */
+    public void resolveDeferredHooks() {
+        deferredHooks.resolve();
+    }
 
-        for ( Class c : inst.getAllLoadedClasses() ) {
-            CodeSource cs = c.getProtectionDomain().getCodeSource();
+    /**
+     * Resolves the hooks on classes that were instrumented as they loaded,
+     * and records those classes' history so they can be changed or reset
+     * like any other.
+     */
+    public void promoteDeferredHooks() {
+
+        deferredHooks.resolve();
+
+        for ( DeferredHookTransformer.LoadedClass lc : deferredHooks.takeResolved() ) {
+            ClassHistory history = new ClassHistory(lc.clazz, lc.originalByteCode, lc.newByteCode);
+            history.setLastClass(lc.originalByteCode);
+            history.setFingerprint(lc.fingerprint);
+            history.setWrapped(lc.wrapped);
+            modifiedClasses.put(history);
+        }
+    }
 
-            if ( cs != null && cs.getLocation() != null ) {
-                URL url = cs.getLocation();
-                SmartURLClassPath cp = urlSources.get(url);
-                if ( cp == null ) {
-                    cp = new SmartURLClassPath(url);
-                    urlSources.put(url, cp);
-                    classPool.appendClassPath( cp );
-                    AgentLogger.debug("Adding " + url.toExternalForm()  + " to classpath lookup");
-                }
-                cp.addClass(c.getName());
-            }
+    /**
+     * Resolves a deferred hook against its class, if the class has been
+     * loaded since the hook was made.
+     * @return whether the hook's ready to be put in the normal way
+     */
+    public boolean resolveDeferredHook(DeferredHook hook) {
 
-            ClassLoader cl = c.getClassLoader();
-            if ( cl != null && ! classloaders.contains(cl)) {
-                classloaders.add(cl);
-                classPool.insertClassPath(new LoaderClassPath(cl));
-            }
+        if ( hook.isResolved() ) {
+            return true;
         }
 
+        Class c = findLoadedClass(hook.getClassName());
+
+        return c != null && DeferredHookTransformer.resolve(hook, c);
+    }
+
+    /**
+     * @return the loaded class with the given name, or null if there isn't
+     *         one. Unlike getFromAllClasses(), this never loads anything.
+     */
+    public Class findLoadedClass(String className) {
+        return classIndex.getClass(className, null);
+    }
+
+    /**
+     * @param loader the loader to prefer, if more than one has defined a
+     *               class with this name
+     * @return the loaded class with the given name, or null if there isn't
+     *         one. This never loads anything.
+     */
+    public Class findLoadedClass(String className, ClassLoader loader) {
+        return classIndex.getClass(className, loader);
+    }
+
+    public InstrumentationManager(Instrumentation inst) {
+        this.inst = inst;
+        this.modifiedClasses = new ClassHistoryStore();
+        this.classPools = new ClassPools();
+        this.classBytes = new ClassBytesCache();
+        this.instrumentedClasses = new InstrumentedClassCache();
+        this.classIndex = new LoadedClassIndex(inst);
+        this.codeSources = new CodeSourceTracker(classIndex, classPools);
+        this.classIndex.start();
+
+        this.deferredHooks = new DeferredHookTransformer(classPools, instrumentedClasses, classIndex);
+        inst.addTransformer(deferredHooks);
+    }
+
+    public List<URL> getCodeSourceURLs() {
+        codeSources.update();
+        return codeSources.getURLs();
+    }
+
+    /**
+     * Adds the code sources and loaders of the classes that have loaded
+     * since the last update, so the class pools can find them.
+     */
+    public final void updateClassPool() {
+        codeSources.update();
     }
 
     public boolean hasClassBeenModified(String clazz)
@@ -125,19 +208,62 @@ public class InstrumentationManager {
     }
 
     public boolean hasClassBeenModified(Class c) {
-        return modifiedClasses.get(c.hashCode()) != null;
+        return modifiedClasses.contains(c);
+    }
+
+    public ClassPools getClassPools() {
+        return classPools;
+    }
+
+    /**
+     * @return the saved bytecode of every class we've changed, which can
+     *         report how much memory it's using
+     */
+    public ClassHistoryStore getClassHistory() {
+        return modifiedClasses;
+    }
+
+    /**
+     * @return the fingerprint of the changes the class is running with, or
+     *         null if it's running its original bytes
+     */
+    public String getFingerprint(Class c) {
+        ClassHistory history = modifiedClasses.get(c);
+        return history != null ? history.getFingerprint() : null;
+    }
+
+    /**
+     * @return the classes currently running instrumented bytes
+     */
+    public List<Class> getInstrumentedClasses() {
+        List<Class> classes = new ArrayList<Class>();
+        for ( ClassHistory history : modifiedClasses.getAll() ) {
+            if ( history.getFingerprint() != null ) {
+                classes.add(history.getClazz());
+            }
+        }
+        return classes;
     }
 
     public void resetClass(Class clazz)
             throws ClassNotFoundException, UnmodifiableClassException {
 
-        ClassHistory history = modifiedClasses.get(clazz.hashCode());
+        ClassHistory history = modifiedClasses.get(clazz);
 
         if ( history != null ) {
             // re-instrument original code back in
             ClassDefinition def = new ClassDefinition(clazz, history.getOriginalClass());
+            classBytes.invalidate(clazz);
             inst.redefineClasses(def);
-            modifiedClasses.remove(clazz.hashCode());
+
+            // a wrapped class can't go back to its class file, so its
+            // history is what it has to start from next time
+            if ( history.isWrapped() ) {
+                history.setFingerprint(null);
+                modifiedClasses.setCurrentClass(clazz, history.getOriginalClass());
+            } else {
+                modifiedClasses.remove(clazz);
+            }
         }
     }
 
@@ -149,62 +275,365 @@ public class InstrumentationManager {
     public void deinstrument(Class clazz)
             throws InstrumentationException {
 
-        ClassHistory history = modifiedClasses.get(clazz.hashCode());
+        List<Class> classes = new ArrayList<Class>();
+        classes.add(clazz);
+
+        deinstrument(classes);
+    }
+
+    /**
+     * Puts the original bytes of every given class back in a single
+     * redefinition, rather than stopping the target once per class.
+     */
+    public void deinstrument(Collection<Class> classes)
+            throws InstrumentationException {
+
+        List<ClassDefinition> definitions = new ArrayList<ClassDefinition>();
+
+        for ( Class clazz : classes ) {
+            ClassHistory history = modifiedClasses.get(clazz);
 
-        try {
-            
             if ( history == null ) {
                 throw new InstrumentationException("Class to deinstrument '" + clazz.getName() + "' not found in history");
             }
 
-            ClassDefinition definition = new ClassDefinition(clazz, history.getOriginalClass());
-            inst.redefineClasses(definition);
-            AgentLogger.debug("Just de-instrumented " + clazz.getName());
-            
-        } catch (ClassNotFoundException cnfe) {
-            throw new InstrumentationException(cnfe);
-        } catch (UnmodifiableClassException cnfe) {
-            throw new InstrumentationException(cnfe);
+            definitions.add(new ClassDefinition(clazz, history.getOriginalClass()));
         }
 
+        List<Class> failed = redefine(definitions);
+
+        for ( ClassDefinition definition : definitions ) {
+            Class clazz = definition.getDefinitionClass();
+            if ( ! failed.contains(clazz) ) {
+                ClassHistory history = modifiedClasses.get(clazz);
+                history.setFingerprint(null);
+                modifiedClasses.setCurrentClass(clazz, history.getOriginalClass());
+                AgentLogger.debug("Just de-instrumented " + clazz.getName());
+            }
+        }
+
+        if ( ! failed.isEmpty() ) {
+            throw new InstrumentationException("Could not de-instrument " + getNames(failed));
+        }
     }
 
     public void instrument(Class clazz,MethodChanges[] methodChanges) throws InstrumentationException {
 
+        Map<Class,MethodChanges[]> changes = new HashMap<Class,MethodChanges[]>();
+        changes.put(clazz, methodChanges);
+
+        instrument(changes);
+    }
+
+    /**
+     * Generates the new bytes for every class first and then hands them
+     * to the JVM in one redefinition. If the batch is refused, each class
+     * is retried on its own so one bad class doesn't sink the rest.
+     */
+    public void instrument(Map<Class,MethodChanges[]> changes) throws InstrumentationException {
+
+        List<Class> failed = instrumentAll(changes);
+
+        if ( ! failed.isEmpty() ) {
+            throw new InstrumentationException("Could not instrument " + getNames(failed));
+        }
+    }
+
+    /**
+     * Like instrument(), but puts in whatever it can and reports the
+     * classes it couldn't rather than throwing.
+     *
+     * @return the classes that couldn't be instrumented
+     */
+    public List<Class> instrumentAll(Map<Class,MethodChanges[]> changes) throws InstrumentationException {
+
+        updateClassPool();
+
+        List<Class> failed = new ArrayList<Class>();
+        List<ClassHistory> histories = prepareAll(changes, failed);
+        List<ClassDefinition> definitions = new ArrayList<ClassDefinition>();
+
+        for ( ClassHistory history : histories ) {
+            definitions.add(new ClassDefinition(history.getClazz(), history.getCurrentClass()));
+        }
+
+        List<Class> notRedefined = redefine(definitions);
+
+        // save the originals for everything that made it in
+        for ( ClassHistory history : histories ) {
+            if ( ! notRedefined.contains(history.getClazz()) ) {
+                modifiedClasses.put(history);
+            }
+        }
+
+        AgentLogger.debug("Class history: " + modifiedClasses);
+
+        failed.addAll(notRedefined);
+        return failed;
+    }
+
+    /**
+     * Builds the new bytes for every class, spreading the work over a few
+     * threads when there's enough of it. Each thread has its own class
+     * pools; only the redefinition afterwards has to happen in one place.
+     *
+     * @param failed gets the classes that couldn't be prepared
+     * @return the histories of the classes that could, in the map's order
+     */
+    private List<ClassHistory> prepareAll(Map<Class,MethodChanges[]> changes, List<Class> failed)
+            throws InstrumentationException {
+
+        final List<Class> classes = new ArrayList<Class>(changes.keySet());
+        final List<MethodChanges[]> classChanges = new ArrayList<MethodChanges[]>(changes.values());
+        final ClassHistory[] histories = new ClassHistory[classes.size()];
+
+        int threads = Math.min(getThreadCount(), classes.size() / MIN_CLASSES_PER_THREAD);
+
+        if ( threads <= 1 ) {
+
+            for ( int i=0; i<classes.size(); i++ ) {
+                ClassPools.Scope scope = classPools.openScope(classes.get(i).getClassLoader());
+                try {
+                    histories[i] = prepare(classes.get(i), classChanges.get(i), scope);
+                } catch (InstrumentationException e) {
+                    if ( classes.size() == 1 ) {
+                        throw e;
+                    }
+                    AgentLogger.error("Problem instrumenting " + classes.get(i).getName(), e);
+                } finally {
+                    scope.close();
+                }
+            }
+
+        } else {
+
+            AgentLogger.debug("Preparing " + classes.size() + " classes on " + threads + " threads");
+
+            // the threads take the next class off the list until it's empty,
+            // so a few big classes don't hold up everybody else
+            final AtomicInteger next = new AtomicInteger();
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JavaSnoop Instrumenter " + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            try {
+
+                List<Future<Object>> futures = new ArrayList<Future<Object>>();
+
+                for ( int i=0; i<threads; i++ ) {
+                    futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() {
+                            ClassPools.Worker worker = classPools.newWorker();
+                            try {
+                                int i;
+                                while ( (i = next.getAndIncrement()) < histories.length ) {
+                                    if ( Thread.currentThread().isInterrupted() ) {
+                                        break;
+                                    }
+                                    Class clazz = classes.get(i);
+                                    ClassPools.Scope scope = worker.openScope(clazz.getClassLoader());
+                                    try {
+                                        histories[i] = prepare(clazz, classChanges.get(i), scope);
+                                    } catch (Throwable t) {
+                                        AgentLogger.error("Problem instrumenting " + clazz.getName(), t);
+                                    } finally {
+                                        scope.close();
+                                    }
+                                }
+                            } finally {
+                                worker.close();
+                            }
+                            return null;
+                        }
+                    }));
+                }
+
+                for ( Future<Object> future : futures ) {
+                    future.get();
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InstrumentationException("Interrupted while preparing classes");
+            } catch (ExecutionException e) {
+                throw new InstrumentationException("Problem preparing classes: " + e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        List<ClassHistory> prepared = new ArrayList<ClassHistory>();
+
+        for ( int i=0; i<histories.length; i++ ) {
+            if ( histories[i] != null ) {
+                prepared.add(histories[i]);
+            } else {
+                failed.add(classes.get(i));
+            }
+        }
+
+        return prepared;
+    }
+
+    /**
+     * @return how many threads to prepare classes on, from instrument_threads
+     *         or the number of processors
+     */
+    private static int getThreadCount() {
+        String s = JavaSnoop.getProperty(JavaSnoop.INSTRUMENT_THREADS);
+        return s != null ? Math.max(1, JavaSnoop.getIntProperty(JavaSnoop.INSTRUMENT_THREADS))
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Redefines all the classes at once, falling back to one at a time
+     * when the batch fails.
+     *
+     * @return the classes that couldn't be redefined
+     */
+    private List<Class> redefine(List<ClassDefinition> definitions) {
+
+        List<Class> failed = new ArrayList<Class>();
+
+        if ( definitions.isEmpty() ) {
+            return failed;
+        }
+
+        for ( ClassDefinition definition : definitions ) {
+            classBytes.invalidate(definition.getDefinitionClass());
+        }
+
+        try {
+
+            inst.redefineClasses(definitions.toArray(new ClassDefinition[definitions.size()]));
+            AgentLogger.debug("Redefined " + definitions.size() + " classes in one batch");
+            return failed;
+
+        } catch (Throwable t) {
+            if ( definitions.size() == 1 ) {
+                AgentLogger.error("Problem redefining " + definitions.get(0).getDefinitionClass().getName(), t);
+                failed.add(definitions.get(0).getDefinitionClass());
+                return failed;
+            }
+            AgentLogger.warn("Batch redefinition of " + definitions.size() + " classes failed, retrying one at a time", t);
+        }
+
+        for ( ClassDefinition definition : definitions ) {
+            try {
+                inst.redefineClasses(definition);
+            } catch (Throwable t) {
+                AgentLogger.error("Problem redefining " + definition.getDefinitionClass().getName(), t);
+                failed.add(definition.getDefinitionClass());
+            }
+        }
+
+        return failed;
+    }
+
+    /**
+     * Compiles the changes into the method, adding any necessary vars first.
+     *
+     * @param canAddMethods whether the class is still being defined, so the
+     *                      method can be wrapped if the changes ask for it
+     */
+    static void apply(CtBehavior method, MethodChanges change, String className, boolean canAddMethods) throws CannotCompileException {
+
+        // a wrapped method keeps its identity, the code just goes in the wrapper
+        WrappedMethods.wrap(method, change, canAddMethods);
+
+        LocalVariable[] newVars = change.getNewLocalVariables();
+
+        for(int i=0;i<newVars.length;i++) {
+            LocalVariable newVar = newVars[i];
+            method.addLocalVariable(newVar.getName(), newVar.getType());
+        }
+
+        AgentLogger.trace("Adding to class " + className);
+
+        if ( change.getNewStartSrc().length() > 0 ) {
+            AgentLogger.trace("Compiling code at beginnging of function:");
+            AgentLogger.trace(change.getNewStartSrc());
+            method.insertBefore( " { " + change.getNewStartSrc() + " } ");
+        }
+
+        if ( change.getNewEndSrc().length() > 0 ) {
+            AgentLogger.trace("Compiling code for end of function:");
+            AgentLogger.trace(change.getNewEndSrc());
+            method.insertAfter( " { " + change.getNewEndSrc() + " } ");
+        }
+
+        // after the source, so its entry code runs first and its exit code last
+        if ( change.getBytecode() != null ) {
+            AgentLogger.trace("Writing bytecode: " + change.getBytecode());
+            change.getBytecode().apply(method);
+        }
+
+        AgentLogger.debug("Done bytecode modification for " + className);
+    }
+
+    private static String getNames(List<Class> classes) {
+        StringBuilder sb = new StringBuilder();
+        for ( Class c : classes ) {
+            if ( sb.length() > 0 ) {
+                sb.append(", ");
+            }
+            sb.append(c.getName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds the instrumented bytes for a class without touching the
+     * running copy. The returned history isn't recorded until the
+     * redefinition goes through.
+     */
+    private ClassHistory prepare(Class clazz,MethodChanges[] methodChanges,ClassPools.Scope scope) throws InstrumentationException {
+
         // step #1: get original class
         try {
      
-            ClassPool classPool = ClassPool.getDefault();
-            CtClass cls = classPool.get(clazz.getName());
-            
             // get the original bytecode so we can change our mind later
-            ClassHistory ch = modifiedClasses.get(clazz.hashCode());
+            ClassHistory ch = modifiedClasses.get(clazz);
 
             byte[] originalByteCode = null;
             byte[] lastVersionByteCode = null;
             
             if ( ch != null ) {
 
-                // we've instrumented this class before. we've got to
-                // be tricky here.
+                // we've instrumented this class before, so start again
+                // from the bytes we saved rather than the class file
                 originalByteCode = ch.getOriginalClass();
                 AgentLogger.trace("Restoring saved bytes for " + clazz.getName() + " (" + md5(originalByteCode) + ")");
-                
-                ClassPool cp = new ClassPool(classPool);
-                cp.childFirstLookup = true;
-                cp.insertClassPath(new ByteArrayClassPath(clazz.getName(),originalByteCode));
-                cls = cp.get(clazz.getName());
-                cp.childFirstLookup = false;
-                AgentLogger.trace("Retrieved bytes after save: " + md5(cls.toBytecode()));
-
                 lastVersionByteCode = ch.getCurrentClass();
                 
             } else {
-                originalByteCode = cls.toBytecode();
+                originalByteCode = classPools.getClassfile(clazz.getClassLoader(), clazz.getName());
                 AgentLogger.trace("Instrumenting new class " + clazz.getName() + " (" + md5(originalByteCode) + ")");
                 lastVersionByteCode = originalByteCode;
             }
 
+            String fingerprint = MethodChanges.getFingerprint(methodChanges);
+
+            // these changes have been made to these bytes before
+            byte[] cached = instrumentedClasses.get(clazz.getClassLoader(), clazz.getName(), originalByteCode, fingerprint);
+
+            if ( cached != null ) {
+                AgentLogger.debug("Using cached instrumented bytes for " + clazz.getName());
+                ClassHistory history = new ClassHistory(clazz,originalByteCode,cached);
+                history.setLastClass(lastVersionByteCode);
+                history.setFingerprint(fingerprint);
+                history.setWrapped(ch != null && ch.isWrapped());
+                return history;
+            }
+
+            CtClass cls = scope.load(clazz.getName(), originalByteCode);
+
             // unfreeze the class so we can modify it
             cls.defrost();
 
@@ -219,7 +648,7 @@ public class InstrumentationManager {
                 //System.out.println(clazz.getName() + ": " + change.getUniqueMethod().getName() + "(" + parameterTypes.length);
                 
                 for(int i=0;i<parameterTypes.length;i++) 
-                    classes[i] = classPool.get(parameterTypes[i].getName());
+                    classes[i] = scope.get(parameterTypes[i].getName());
 
                 // get the method to instrument
                 String methodName = null;
@@ -236,54 +665,22 @@ public class InstrumentationManager {
                     method = cls.getDeclaredMethod(methodName, classes);
                 }
 
-                // instrument the method, adding any necessary vars first
-                LocalVariable[] newVars = change.getNewLocalVariables();
-
-                for(int i=0;i<newVars.length;i++) {
-                    LocalVariable newVar = newVars[i];
-                    method.addLocalVariable(newVar.getName(), newVar.getType());
-                }
-
-                AgentLogger.trace("Adding to class " + clazz.getName());
-
-                if ( change.getNewStartSrc().length() > 0 ) {
-                    AgentLogger.trace("Compiling code at beginnging of function:");
-                    AgentLogger.trace(change.getNewStartSrc());
-                    method.insertBefore( " { " + change.getNewStartSrc() + " } ");
-                }
-
-                if ( change.getNewEndSrc().length() > 0 ) {
-                    AgentLogger.trace("Compiling code for end of function:");
-                    AgentLogger.trace(change.getNewEndSrc());
-                    method.insertAfter( " { " + change.getNewEndSrc() + " } ");
-                }
-                
-                AgentLogger.debug("Done bytecode modification for " + clazz.getName());
+                apply(method, change, clazz.getName(), false);
 
             }
            
             // save the instrumented version of the class
             byte[] newByteCode = cls.toBytecode();
+            cls.detach();
 
-            ClassDefinition definition = new ClassDefinition(clazz, newByteCode);
-
-            try {
-
-                inst.redefineClasses(definition);
-
-            } catch (VerifyError error) {
-                //logger.error(error);
-            }
+            instrumentedClasses.put(clazz.getClassLoader(), clazz.getName(), originalByteCode, fingerprint, newByteCode);
 
-            // save the original
             ClassHistory history = new ClassHistory(clazz,originalByteCode,newByteCode);
             history.setLastClass(lastVersionByteCode);
-            modifiedClasses.put(clazz.hashCode(), history);
+            history.setFingerprint(fingerprint);
+            history.setWrapped(ch != null && ch.isWrapped());
+            return history;
 
-        } catch (UnmodifiableClassException uce) {
-            throw new InstrumentationException(uce);
-        } catch (ClassNotFoundException cnfe) {
-            throw new InstrumentationException(cnfe);
         } catch (IOException ioe) {
             throw new InstrumentationException(ioe);
         } catch (CannotCompileException cce) {
@@ -294,44 +691,78 @@ public class InstrumentationManager {
 
     }
 
-    
-    Map<String,byte[]> classBytes = new HashMap<String,byte[]>();
-
     public byte[] getClassBytes(String clazz) {
 
+        updateClassPool();
+        Class c = findLoadedClass(clazz);
+
+        if ( c != null ) {
+            return getClassBytes(c);
+        }
+
         try {
+            return classPools.getClassfile(null, clazz);
+        } catch (IOException ex) {
+            //logger.error(ex);
+        } catch (NotFoundException ex) {
+            // this will occasionally with applet-loading related classes (com.sun.deploy, sun.reflect, etc.)
+        }
 
-            byte[] bytes = classBytes.get(clazz);
-            
-            if ( bytes != null ) {
-                return bytes;
-            }
-   
-            CtClass cls = ClassPool.getDefault().get(clazz);    
-            bytes = cls.toBytecode();
-            classBytes.put(clazz,bytes);
+        return null;
+    }
+
+    /**
+     * @return the bytecode the class is running now: our last version of
+     *         it if we've changed it, or otherwise its class file
+     */
+    public byte[] getClassBytes(Class c) {
+
+        ClassHistory history = modifiedClasses.get(c);
+
+        if ( history != null ) {
+            return history.getCurrentClass();
+        }
+
+        byte[] bytes = classBytes.get(c.getClassLoader(), c.getName());
+
+        if ( bytes != null ) {
+            return bytes;
+        }
+
+        try {
+
+            updateClassPool();
+            bytes = classPools.getClassfile(c.getClassLoader(), c.getName());
+            classBytes.put(c.getClassLoader(), c.getName(), bytes);
 
             return bytes;
 
         } catch (IOException ex) {
             //logger.error(ex);
-        } catch (CannotCompileException ex) {
-            //logger.error(ex);
         } catch (NotFoundException ex) {
             // this will occasionally with applet-loading related classes (com.sun.deploy, sun.reflect, etc.)
         }
         
         return null;
     }
-    
+
+    public ClassBytesCache getClassBytesCache() {
+        return classBytes;
+    }
+
+    /**
+     * @return the instrumented class files saved on disk from earlier runs
+     */
+    public InstrumentedClassCache getInstrumentedClassCache() {
+        return instrumentedClasses;
+    }
     
     public Class getFromAllClasses(String className) throws ClassNotFoundException {
-        Class[] allClasses = inst.getAllLoadedClasses();
 
-        for ( Class c : allClasses ) {
-            if ( c.getName().equals(className)) {
-                return c;
-            }
+        Class c = classIndex.getClass(className, null);
+
+        if ( c != null ) {
+            return c;
         }
 
         try {
@@ -353,28 +784,8 @@ public class InstrumentationManager {
         throw new ClassNotFoundException(className);
     }
 
-    public Class getFromAllClasses(int hash) throws ClassNotFoundException {
-        Class[] allClasses = inst.getAllLoadedClasses();
-
-        for ( Class c : allClasses ) {
-            if ( c.hashCode() == hash) {
-                return c;
-            }
-        }
-
-        throw new ClassNotFoundException("For hash: " + hash);
-    }
-
     public void resetAllClasses() throws InstrumentationException {
-        for(Integer i: modifiedClasses.keySet()) {
-            try {
-                Class c = getFromAllClasses(i.intValue());
-                deinstrument(c);
-            } catch (ClassNotFoundException e) {
-                //logger.error("Couldn't find class from hash " + i);
-            }
-            
-        }
+        deinstrument(getInstrumentedClasses());
     }
 
     public static String md5(byte[] bytes) {
@@ -410,7 +821,8 @@ public class InstrumentationManager {
     }
 
     public List<ClassLoader> getClassLoaders() {
-        return classloaders;
+        codeSources.update();
+        return codeSources.getClassLoaders();
     }
 
     
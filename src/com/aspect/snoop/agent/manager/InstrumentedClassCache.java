@@ -0,0 +1,417 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.JavaSnoop;
+import com.aspect.snoop.agent.AgentLogger;
+import com.aspect.snoop.util.IOUtil;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javassist.CtClass;
+
+/**
+ * Instrumented class files kept on disk between runs, so attaching to the
+ * same application with the same session again doesn't have to compile
+ * anything. An entry is keyed by the class's name and original bytes, the
+ * fingerprint of the changes made to it, a digest of the agent and
+ * Javassist code that made them, and the classpath of the loader the
+ * class came from, since stack maps are worked out from the classes on
+ * it. If any of those differ it's simply not found.
+ * Once the files add up to more than instrumented_class_cache KB, the
+ * least recently used are deleted. Setting it to 0 turns the cache off.
+ */
+public class InstrumentedClassCache {
+
+    private static final int DEFAULT_DISK = 32 * 1024;
+
+    // worked out the first time it's needed
+    private static String codeDigest;
+
+    private final File dir;
+    private final long limit;
+
+    // what each loader's classpath looked like when it was first used
+    private final Map<ClassLoader,String> classpaths = new WeakHashMap<ClassLoader,String>();
+
+    // -1 until the directory's been looked at
+    private long size = -1;
+
+    private long hits;
+    private long misses;
+    private long writes;
+    private long evictions;
+
+    public InstrumentedClassCache() {
+        this(new File(System.getProperty("user.home"), ".javasnoop" + File.separator + "instrumented"));
+    }
+
+    public InstrumentedClassCache(File dir) {
+        String s = JavaSnoop.getProperty(JavaSnoop.INSTRUMENTED_CLASS_CACHE);
+        int kb = s != null ? Math.max(0, JavaSnoop.getIntProperty(JavaSnoop.INSTRUMENTED_CLASS_CACHE)) : DEFAULT_DISK;
+        this.limit = kb * 1024L;
+        this.dir = dir;
+    }
+
+    public boolean isEnabled() {
+        return limit > 0;
+    }
+
+    /**
+     * @return the instrumented bytes saved for these changes to this
+     *         version of the class, or null if there aren't any
+     */
+    public byte[] get(ClassLoader loader, String className, byte[] original, String fingerprint) {
+
+        if ( ! isEnabled() ) {
+            return null;
+        }
+
+        File f = getFile(loader, className, original, fingerprint);
+        byte[] bytes = null;
+
+        if ( f.isFile() ) {
+            try {
+                bytes = read(f);
+                f.setLastModified(System.currentTimeMillis());
+            } catch (IOException e) {
+                AgentLogger.debug("Couldn't read cached class " + f + ": " + e.getMessage());
+            }
+        }
+
+        synchronized(this) {
+            if ( bytes != null ) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Saves the instrumented bytes for next time. Failing to save them
+     * isn't an error; they'll just be made again.
+     */
+    public void put(ClassLoader loader, String className, byte[] original, String fingerprint, byte[] instrumented) {
+
+        if ( ! isEnabled() || instrumented.length > limit ) {
+            return;
+        }
+
+        File f = getFile(loader, className, original, fingerprint);
+
+        try {
+
+            if ( ! dir.isDirectory() && ! dir.mkdirs() ) {
+                throw new IOException("Couldn't create " + dir);
+            }
+
+            // written to the side and moved in, so nobody reads half a file
+            File tmp = File.createTempFile("class", ".tmp", dir);
+            FileOutputStream fos = new FileOutputStream(tmp);
+
+            try {
+                fos.write(instrumented);
+            } finally {
+                fos.close();
+            }
+
+            long old = f.length();
+
+            if ( ! tmp.renameTo(f) ) {
+                f.delete();
+                if ( ! tmp.renameTo(f) ) {
+                    tmp.delete();
+                    throw new IOException("Couldn't move " + tmp + " to " + f);
+                }
+            }
+
+            added(instrumented.length - old);
+
+        } catch (IOException e) {
+            AgentLogger.debug("Couldn't cache instrumented " + className + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes everything in the cache.
+     */
+    public synchronized void clear() {
+
+        File[] files = dir.listFiles();
+
+        if ( files != null ) {
+            for ( File f : files ) {
+                f.delete();
+            }
+        }
+
+        size = 0;
+    }
+
+    private synchronized void added(long bytes) {
+
+        writes++;
+
+        if ( size < 0 ) {
+            size = getDiskUsage();
+        } else {
+            size += bytes;
+        }
+
+        if ( size <= limit ) {
+            return;
+        }
+
+        File[] files = dir.listFiles();
+
+        if ( files == null ) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+
+        for ( int i=0; i<files.length && size > limit; i++ ) {
+            long length = files[i].length();
+            if ( files[i].delete() ) {
+                size -= length;
+                evictions++;
+            }
+        }
+    }
+
+    private long getDiskUsage() {
+
+        long total = 0;
+        File[] files = dir.listFiles();
+
+        if ( files != null ) {
+            for ( File f : files ) {
+                total += f.length();
+            }
+        }
+
+        return total;
+    }
+
+    private File getFile(ClassLoader loader, String className, byte[] original, String fingerprint) {
+
+        String key = className + "\n" + InstrumentationManager.md5(original) + "\n" + fingerprint
+                + "\n" + getCodeDigest() + "\n" + getClasspath(loader);
+
+        try {
+            return new File(dir, InstrumentationManager.md5(key.getBytes("UTF-8")) + ".class");
+        } catch (UnsupportedEncodingException e) {
+            return new File(dir, InstrumentationManager.md5(key.getBytes()) + ".class");
+        }
+    }
+
+    /**
+     * Describes the jars and directories a loader and its parents search,
+     * with the size and date of each file so one replaced in place counts
+     * as a different classpath. Classes the JVM itself provides are covered
+     * by its version.
+     */
+    private String getClasspath(ClassLoader loader) {
+
+        if ( loader == null ) {
+            return System.getProperty("java.version");
+        }
+
+        synchronized(classpaths) {
+            String classpath = classpaths.get(loader);
+            if ( classpath != null ) {
+                return classpath;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(System.getProperty("java.version"));
+
+        for ( ClassLoader l = loader; l != null; l = l.getParent() ) {
+
+            sb.append('\n').append(l.getClass().getName());
+
+            if ( ! (l instanceof URLClassLoader) ) {
+                continue;
+            }
+
+            for ( URL url : ((URLClassLoader)l).getURLs() ) {
+                sb.append(' ').append(url);
+                if ( "file".equals(url.getProtocol()) ) {
+                    File f = new File(url.getPath());
+                    sb.append('@').append(f.length()).append('/').append(f.lastModified());
+                }
+            }
+        }
+
+        String classpath = sb.toString();
+
+        synchronized(classpaths) {
+            classpaths.put(loader, classpath);
+        }
+
+        return classpath;
+    }
+
+    /**
+     * @return a digest of the agent's and Javassist's code, so a rebuilt
+     *         agent never picks up what an older one compiled
+     */
+    private static synchronized String getCodeDigest() {
+
+        if ( codeDigest == null ) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                digest(md, InstrumentedClassCache.class);
+                digest(md, CtClass.class);
+                codeDigest = toHex(md.digest());
+            } catch (Exception e) {
+                // without it nothing can safely be reused, so nothing's found
+                AgentLogger.debug("Couldn't digest the agent's code: " + e.getMessage());
+                codeDigest = Long.toString(System.nanoTime());
+            }
+        }
+
+        return codeDigest;
+    }
+
+    private static void digest(MessageDigest md, Class c) throws IOException, URISyntaxException {
+
+        CodeSource source = c.getProtectionDomain().getCodeSource();
+
+        if ( source == null || source.getLocation() == null ) {
+            throw new IOException("no code source for " + c.getName());
+        }
+
+        digest(md, new File(source.getLocation().toURI()));
+    }
+
+    private static void digest(MessageDigest md, File f) throws IOException {
+
+        if ( f.isDirectory() ) {
+
+            File[] files = f.listFiles();
+
+            if ( files == null ) {
+                return;
+            }
+
+            // the same files have to go in in the same order every time
+            Arrays.sort(files);
+
+            for ( File child : files ) {
+                if ( child.isDirectory() || child.getName().endsWith(".class") ) {
+                    digest(md, child);
+                }
+            }
+
+            return;
+        }
+
+        InputStream is = new FileInputStream(f);
+
+        try {
+            byte[] buf = new byte[8192];
+            int read;
+            while ( (read = is.read(buf)) != -1 ) {
+                md.update(buf, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+
+        StringBuilder sb = new StringBuilder();
+
+        for ( byte b : bytes ) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] read(File f) throws IOException {
+
+        InputStream is = new FileInputStream(f);
+        byte[] bytes;
+
+        try {
+            bytes = IOUtil.getBytesFromStream(is);
+        } finally {
+            is.close();
+        }
+
+        // anything that isn't a class file isn't ours
+        if ( bytes.length < 10 || (bytes[0] & 0xff) != 0xca || (bytes[1] & 0xff) != 0xfe
+                || (bytes[2] & 0xff) != 0xba || (bytes[3] & 0xff) != 0xbe ) {
+            throw new IOException("not a class file");
+        }
+
+        return bytes;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        if ( ! isEnabled() ) {
+            return "off";
+        }
+
+        if ( size < 0 ) {
+            size = getDiskUsage();
+        }
+
+        return (size / 1024) + "/" + (limit / 1024) + " KB in " + dir + ", "
+                + hits + " hits, " + misses + " misses, " + writes + " writes, " + evictions + " evictions";
+    }
+}
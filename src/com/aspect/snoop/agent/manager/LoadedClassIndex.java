@@ -0,0 +1,320 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.agent.AgentLogger;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of every class in the target so questions like "what
+ * implements this interface" or "which classes are called this" are a map
+ * lookup rather than a walk over all the loaded classes.
+ *
+ * The index is built once on a background thread from the classes that
+ * are already loaded. After that, the transformer just counts the classes
+ * that get defined; if any have been by the time the index is asked
+ * something, the loaded classes are gone through again and only the ones
+ * it hasn't seen are added. Every Class is held weakly, so the index
+ * never keeps a class or its loader from being unloaded. Anything else
+ * that needs to hear about new classes can listen to the index rather
+ * than watching class loading itself.
+ */
+public class LoadedClassIndex implements ClassFileTransformer {
+
+    private final Instrumentation inst;
+
+    private final CountDownLatch built = new CountDownLatch(1);
+
+    // bumped for every class defined, and what it was at the last update
+    private final AtomicInteger defined = new AtomicInteger();
+    private int indexed;
+
+    // every class we've indexed
+    private final Set<Class> seen = newWeakSet();
+
+    // supertype -> every loaded class that extends or implements it, directly or not
+    private final Map<Class,Set<Class>> subtypes = new WeakHashMap<Class,Set<Class>>();
+
+    // name -> the classes with that name, one per loader that defined it
+    private final Map<String,Set<Class>> byName = new HashMap<String,Set<Class>>();
+
+    private final List<Listener> listeners = new ArrayList<Listener>();
+
+    public LoadedClassIndex(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    /**
+     * Something to tell about each class the first time the index sees it.
+     */
+    public interface Listener {
+        void added(Class c);
+    }
+
+    /**
+     * Adds a listener. Has to be done before start(), so it hears about
+     * every class.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts listening for new classes and builds the index from what's
+     * already loaded in the background.
+     */
+    public void start() {
+
+        // listen first, so nothing loaded during the build gets missed
+        inst.addTransformer(this);
+
+        Thread t = new Thread("JavaSnoop Class Index") {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    synchronized(subtypes) {
+                        scan();
+                    }
+                    AgentLogger.debug("Indexed " + seen.size() + " classes in " + (System.currentTimeMillis() - start) + "ms");
+                } catch (Throwable t) {
+                    AgentLogger.error("Problem building the class index", t);
+                } finally {
+                    built.countDown();
+                }
+            }
+        };
+
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+
+        // redefinitions (including our own) don't change the hierarchy
+        if ( classBeingRedefined == null ) {
+            defined.incrementAndGet();
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds the classes that have been defined since the last update. Waits
+     * for the first build if it's still going.
+     */
+    public void update() {
+
+        awaitBuild();
+
+        synchronized(subtypes) {
+            update0();
+        }
+    }
+
+    /**
+     * @return every loaded class that extends or implements the given type,
+     *         not including the type itself
+     */
+    public List<Class> getSubtypes(Class clazz) {
+
+        awaitBuild();
+
+        synchronized(subtypes) {
+            update0();
+            Set<Class> s = subtypes.get(clazz);
+            return s == null ? new ArrayList<Class>() : new ArrayList<Class>(s);
+        }
+    }
+
+    /**
+     * @return the loaded classes with the given name. There's usually one,
+     *         but different loaders can each define their own.
+     */
+    public List<Class> getClasses(String name) {
+
+        awaitBuild();
+
+        synchronized(subtypes) {
+            update0();
+            Set<Class> s = byName.get(name);
+            if ( s != null && s.isEmpty() ) {
+                // they've all been unloaded
+                byName.remove(name);
+            }
+            return s == null ? new ArrayList<Class>() : new ArrayList<Class>(s);
+        }
+    }
+
+    /**
+     * @param loader the loader to prefer, if more than one has defined a
+     *               class with this name. The class it would find by
+     *               delegating to its parents comes before any other.
+     * @return the loaded class with the given name, or null if there isn't one
+     */
+    public Class getClass(String name, ClassLoader loader) {
+
+        List<Class> l = getClasses(name);
+
+        if ( l.isEmpty() ) {
+            return null;
+        }
+
+        // the loader itself, then its parents, then the bootstrap loader
+        ClassLoader cl = loader;
+
+        while ( true ) {
+            for ( Class c : l ) {
+                if ( c.getClassLoader() == cl ) {
+                    return c;
+                }
+            }
+            if ( cl == null ) {
+                break;
+            }
+            cl = cl.getParent();
+        }
+
+        return l.get(0);
+    }
+
+    /**
+     * @return the class with the given name that the loader defined itself,
+     *         or null if it hasn't defined one (yet)
+     */
+    public Class getDefinedClass(String name, ClassLoader loader) {
+
+        for ( Class c : getClasses(name) ) {
+            if ( c.getClassLoader() == loader ) {
+                return c;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return every loaded class, other than arrays and primitives
+     */
+    public List<Class> getAllClasses() {
+
+        awaitBuild();
+
+        synchronized(subtypes) {
+            update0();
+            return new ArrayList<Class>(seen);
+        }
+    }
+
+    private void awaitBuild() {
+        try {
+            built.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Goes through the loaded classes again if any have been defined since
+     * the last time. Must hold the lock on subtypes.
+     */
+    private void update0() {
+        if ( defined.get() != indexed ) {
+            scan();
+        }
+    }
+
+    /*
+     * Adds the loaded classes we haven't seen. Must hold the lock on
+     * subtypes.
+     */
+    private void scan() {
+
+        // read first, so classes defined during the scan trigger another
+        indexed = defined.get();
+
+        for ( Class c : inst.getAllLoadedClasses() ) {
+            if ( ! c.isArray() && ! c.isPrimitive() && seen.add(c) ) {
+                add(c);
+            }
+        }
+    }
+
+    private void add(Class c) {
+
+        Set<Class> named = byName.get(c.getName());
+
+        if ( named == null ) {
+            named = newWeakSet();
+            byName.put(c.getName(), named);
+        }
+
+        named.add(c);
+
+        Set<Class> supertypes = new HashSet<Class>();
+        addSupertypes(c, c, supertypes);
+
+        for ( Listener listener : listeners ) {
+            listener.added(c);
+        }
+    }
+
+    private void addSupertypes(Class c, Class type, Set<Class> supertypes) {
+
+        Class superclass = type.getSuperclass();
+
+        if ( superclass != null && supertypes.add(superclass) ) {
+            getSubtypeSet(superclass).add(c);
+            addSupertypes(c, superclass, supertypes);
+        }
+
+        for ( Class i : type.getInterfaces() ) {
+            if ( supertypes.add(i) ) {
+                getSubtypeSet(i).add(c);
+                addSupertypes(c, i, supertypes);
+            }
+        }
+    }
+
+    private Set<Class> getSubtypeSet(Class type) {
+        Set<Class> s = subtypes.get(type);
+        if ( s == null ) {
+            s = newWeakSet();
+            subtypes.put(type, s);
+        }
+        return s;
+    }
+
+    private static Set<Class> newWeakSet() {
+        return Collections.newSetFromMap(new WeakHashMap<Class,Boolean>());
+    }
+}
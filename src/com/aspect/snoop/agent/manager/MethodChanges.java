@@ -19,6 +19,8 @@
 
 package com.aspect.snoop.agent.manager;
 
+import com.aspect.snoop.MethodWrapper;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.AccessibleObject;
 
 public class MethodChanges {
@@ -26,6 +28,9 @@ public class MethodChanges {
     private String newStartSrc;
     private String newEndSrc;
     private AccessibleObject method;
+    private String signature;
+    private BytecodeChanges bytecode;
+    private boolean wrapped;
 
     public void initialize(LocalVariable[] newLocalVars, String newStartSrc, String newEndSrc) {
         this.newLocalVariables = newLocalVars;
@@ -34,12 +39,26 @@ public class MethodChanges {
     }
 
     public MethodChanges(AccessibleObject method) {
+        this(method, signatureOf(method));
+    }
+
+    /**
+     * @param method the method, or null if its class hasn't been defined yet
+     * @param signature the method's name and parameter types
+     */
+    public MethodChanges(AccessibleObject method, String signature) {
         this.method = method;
+        this.signature = signature;
         this.newLocalVariables = new LocalVariable[0];
         this.newStartSrc = "";
         this.newEndSrc = "";
     }
 
+    private static String signatureOf(AccessibleObject method) {
+        MethodWrapper wrapper = MethodWrapper.getWrapper(method);
+        return MethodDescriptor.getSignature(wrapper.getName(), wrapper.getParameterTypes());
+    }
+
     /**
      * @return the newLocalVariables
      */
@@ -105,5 +124,72 @@ public class MethodChanges {
         return method;
     }
 
-    
+    public String getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return the code that's written into the method as bytecode after
+     *         the source has been compiled in, or null if there isn't any
+     */
+    public BytecodeChanges getBytecode() {
+        return bytecode;
+    }
+
+    public void setBytecode(BytecodeChanges bytecode) {
+        this.bytecode = bytecode;
+    }
+
+    /**
+     * @return whether the changes should go in a wrapper that calls a copy
+     *         of the original method, if the method can be wrapped
+     */
+    public boolean isWrapped() {
+        return wrapped;
+    }
+
+    public void setWrapped(boolean wrapped) {
+        this.wrapped = wrapped;
+    }
+
+    /**
+     * Digests everything that would be compiled into a class for these
+     * changes, so two sets of changes can be compared without redoing
+     * the instrumentation. Meant for classes that are already loaded, so
+     * the wrapped flag's left out: a redefinition can't add a wrapper, and
+     * a method that was wrapped as it loaded stays wrapped either way.
+     */
+    public static String getFingerprint(MethodChanges[] changes) {
+        return getFingerprint(changes, false);
+    }
+
+    /**
+     * @param canAddMethods whether the changes are going into a class as
+     *        it loads, where the wrapped flag decides what's compiled
+     */
+    public static String getFingerprint(MethodChanges[] changes, boolean canAddMethods) {
+
+        StringBuilder sb = new StringBuilder();
+
+        for ( MethodChanges change : changes ) {
+            sb.append(change.getSignature()).append('\n');
+            for ( LocalVariable var : change.getNewLocalVariables() ) {
+                sb.append(var.getType().getName()).append(' ').append(var.getName()).append('\n');
+            }
+            sb.append(change.getNewStartSrc()).append('\n');
+            sb.append(change.getNewEndSrc()).append('\n');
+            if ( change.getBytecode() != null ) {
+                sb.append(change.getBytecode()).append('\n');
+            }
+            if ( canAddMethods && change.isWrapped() ) {
+                sb.append("wrapped").append('\n');
+            }
+        }
+
+        try {
+            return InstrumentationManager.md5(sb.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return sb.toString();
+        }
+    }
 }
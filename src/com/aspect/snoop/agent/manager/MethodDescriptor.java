@@ -0,0 +1,245 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.MethodWrapper;
+import com.aspect.snoop.agent.AgentLogger;
+import java.lang.reflect.AccessibleObject;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything the hook and canary code needs to know about an instrumented
+ * method, worked out once at instrumentation time so the injected code only
+ * has to pass an id.
+ */
+public class MethodDescriptor {
+
+    private static final Map<String,Class> primitives = new HashMap<String,Class>();
+
+    static {
+        primitives.put("boolean", boolean.class);
+        primitives.put("byte", byte.class);
+        primitives.put("char", char.class);
+        primitives.put("short", short.class);
+        primitives.put("int", int.class);
+        primitives.put("long", long.class);
+        primitives.put("float", float.class);
+        primitives.put("double", double.class);
+        primitives.put("void", void.class);
+    }
+
+    private final int id;
+    private final Class clazz;
+    private final String className;
+    private final AccessibleObject method;
+    private final String name;
+    private final String[] parameterTypeNames;
+    private final String returnTypeName;
+
+    // the loader to resolve the types from, for a method instrumented as
+    // its class loaded. the types are null until they're first asked for
+    private final ClassLoader loader;
+    private volatile Class[] parameterTypes;
+    private volatile Class returnType;
+
+    MethodDescriptor(int id, Class clazz, AccessibleObject method) {
+        MethodWrapper wrapper = MethodWrapper.getWrapper(method);
+        this.id = id;
+        this.clazz = clazz;
+        this.className = clazz.getName();
+        this.method = method;
+        this.name = wrapper.getName();
+        this.parameterTypes = wrapper.getParameterTypes();
+        this.returnType = wrapper.getReturnType();
+        this.parameterTypeNames = getNames(parameterTypes);
+        this.returnTypeName = returnType.getName();
+        this.loader = null;
+    }
+
+    /**
+     * For a method instrumented while its class was being loaded, before
+     * there was a Class or Method to point at. Loading the types then could
+     * mean loading the class itself, so only their names are kept, and the
+     * types are looked up the first time the hooks need them.
+     */
+    MethodDescriptor(int id, ClassLoader loader, String className, String name, String[] parameterTypeNames, String returnTypeName) {
+        this.id = id;
+        this.clazz = null;
+        this.className = className;
+        this.method = null;
+        this.name = name;
+        this.parameterTypeNames = parameterTypeNames.clone();
+        this.returnTypeName = returnTypeName;
+        this.loader = loader;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the class that was instrumented, which may be a subtype of the
+     *         one that declares the method, or null if it was instrumented
+     *         as it loaded and hasn't been resolved yet
+     */
+    public Class getClazz() {
+        return clazz;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return the method, or null if it was instrumented as its class
+     *         loaded and hasn't been resolved yet
+     */
+    public AccessibleObject getMethod() {
+        return method;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The same array is handed to every caller so the hot path doesn't
+     * allocate. Don't modify it.
+     */
+    public Class[] getParameterTypes() {
+        Class[] types = parameterTypes;
+        if ( types == null ) {
+            resolveTypes();
+            types = parameterTypes;
+        }
+        return types;
+    }
+
+    /**
+     * @return the names of the parameter types, as Class.getName() gives
+     *         them. Don't modify the array.
+     */
+    public String[] getParameterTypeNames() {
+        return parameterTypeNames;
+    }
+
+    public Class getReturnType() {
+        Class type = returnType;
+        if ( type == null ) {
+            resolveTypes();
+            type = returnType;
+        }
+        return type;
+    }
+
+    public String getReturnTypeName() {
+        return returnTypeName;
+    }
+
+    /*
+     * Only a descriptor made while its class was loading gets here, by the
+     * time its hooks run. A type that can't be found is left as Object,
+     * which is all the hooks need to show or tamper with the value.
+     */
+    private synchronized void resolveTypes() {
+
+        if ( parameterTypes != null ) {
+            return;
+        }
+
+        Class[] types = new Class[parameterTypeNames.length];
+
+        for ( int i=0; i<types.length; i++ ) {
+            types[i] = forNameOrObject(parameterTypeNames[i]);
+        }
+
+        returnType = forNameOrObject(returnTypeName);
+        parameterTypes = types;
+    }
+
+    private Class forNameOrObject(String type) {
+        try {
+            return forName(type, loader);
+        } catch (ClassNotFoundException e) {
+            AgentLogger.warn("Couldn't find " + type + " for " + className + "." + name + ", treating it as Object");
+        } catch (LinkageError e) {
+            AgentLogger.warn("Couldn't load " + type + " for " + className + "." + name + ", treating it as Object", e);
+        }
+        return Object.class;
+    }
+
+    /**
+     * Looks a type up by the name Class.getName() gives it, primitives
+     * included, without initializing it.
+     */
+    static Class forName(String type, ClassLoader loader) throws ClassNotFoundException {
+
+        Class c = getPrimitive(type);
+
+        if ( c != null ) {
+            return c;
+        }
+
+        return Class.forName(type, false, loader);
+    }
+
+    /**
+     * @return the primitive type with the name, or null if it isn't one
+     */
+    static Class getPrimitive(String type) {
+        return primitives.get(type);
+    }
+
+    /**
+     * @return a key for the method that's unique within its class
+     */
+    public String getSignature() {
+        return getSignature(name, parameterTypeNames);
+    }
+
+    static String getSignature(String name, Class[] parameterTypes) {
+        return getSignature(name, getNames(parameterTypes));
+    }
+
+    static String getSignature(String name, String[] parameterTypeNames) {
+
+        StringBuilder sb = new StringBuilder(name);
+        sb.append("(");
+
+        for (int i = 0; i < parameterTypeNames.length; i++) {
+            if ( i > 0 ) {
+                sb.append(",");
+            }
+            sb.append(parameterTypeNames[i]);
+        }
+
+        sb.append(")");
+        return sb.toString();
+    }
+
+    private static String[] getNames(Class[] types) {
+        String[] names = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            names[i] = types[i].getName();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.MethodWrapper;
+import java.lang.reflect.AccessibleObject;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The table of instrumented methods. The injected code passes nothing but
+ * the method id, and the hook and canary code look everything else up here.
+ *
+ * A method keeps its id across re-instrumentation so the table doesn't grow
+ * every time a session is re-installed. Like the HookRegistry, the table is
+ * copied on write so the application threads never lock to read it.
+ */
+public class MethodRegistry {
+
+    private static final Object lock = new Object();
+
+    private static final Map<Class,Map<String,Integer>> ids = new IdentityHashMap<Class,Map<String,Integer>>();
+
+    // methods instrumented while their class was loading, by loader and then
+    // class name and signature, until the Class turns up
+    private static final Map<ClassLoader,Map<String,Integer>> deferredIds = new IdentityHashMap<ClassLoader,Map<String,Integer>>();
+
+    private static volatile MethodDescriptor[] descriptors = new MethodDescriptor[32];
+
+    private static int nextId = 0;
+
+    /**
+     * @param clazz the class being instrumented
+     * @param method the method or constructor, which may be declared by a
+     *               supertype of clazz
+     * @return the id the injected code should use for the method
+     */
+    public static int register(Class clazz, AccessibleObject method) {
+
+        MethodWrapper wrapper = MethodWrapper.getWrapper(method);
+        String signature = MethodDescriptor.getSignature(wrapper.getName(), wrapper.getParameterTypes());
+
+        synchronized(lock) {
+
+            Map<String,Integer> forClass = ids.get(clazz);
+
+            if ( forClass == null ) {
+                forClass = new HashMap<String,Integer>();
+                ids.put(clazz, forClass);
+            }
+
+            Integer id = forClass.get(signature);
+
+            if ( id != null ) {
+                return id;
+            }
+
+            // keep the id it was given when it was instrumented at load time,
+            // so the code already in the class still points at it
+            Map<String,Integer> forLoader = deferredIds.get(clazz.getClassLoader());
+            id = forLoader != null ? forLoader.remove(clazz.getName() + "." + signature) : null;
+
+            if ( id == null ) {
+                id = nextId++;
+            }
+
+            forClass.put(signature, id);
+            publish(new MethodDescriptor(id, clazz, method));
+
+            return id;
+        }
+    }
+
+    /**
+     * Registers a method on a class that's still being loaded, by the names
+     * of its types. Once the class is defined, registering the real method
+     * gives back the same id.
+     * @return the id the injected code should use for the method
+     */
+    public static int registerDeferred(ClassLoader loader, String className, String name, String[] parameterTypeNames, String returnTypeName) {
+
+        String key = className + "." + MethodDescriptor.getSignature(name, parameterTypeNames);
+
+        synchronized(lock) {
+
+            Map<String,Integer> forLoader = deferredIds.get(loader);
+
+            if ( forLoader == null ) {
+                forLoader = new HashMap<String,Integer>();
+                deferredIds.put(loader, forLoader);
+            }
+
+            Integer id = forLoader.get(key);
+
+            if ( id != null ) {
+                return id;
+            }
+
+            id = nextId++;
+            forLoader.put(key, id);
+            publish(new MethodDescriptor(id, loader, className, name, parameterTypeNames, returnTypeName));
+
+            return id;
+        }
+    }
+
+    private static void publish(MethodDescriptor descriptor) {
+
+        MethodDescriptor[] current = descriptors;
+        int len = current.length;
+
+        while ( descriptor.getId() >= len ) {
+            len *= 2;
+        }
+
+        MethodDescriptor[] copy = new MethodDescriptor[len];
+        System.arraycopy(current, 0, copy, 0, current.length);
+        copy[descriptor.getId()] = descriptor;
+
+        descriptors = copy;
+    }
+
+    /**
+     * @return the descriptor for the method, or null if the id isn't known
+     */
+    public static MethodDescriptor get(int id) {
+        MethodDescriptor[] current = descriptors;
+        if ( id < 0 || id >= current.length ) {
+            return null;
+        }
+        return current[id];
+    }
+
+    public static int size() {
+        synchronized(lock) {
+            return nextId;
+        }
+    }
+}
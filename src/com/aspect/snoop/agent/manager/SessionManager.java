@@ -19,6 +19,7 @@
 
 package com.aspect.snoop.agent.manager;
 
+import com.aspect.snoop.DeferredHook;
 import com.aspect.snoop.FunctionHook;
 import com.aspect.snoop.SnoopSession;
 import com.aspect.snoop.agent.AgentLogger;
@@ -28,14 +29,63 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class SessionManager {
 
+    /**
+     * Brings the running classes in line with the session. Only the classes
+     * whose generated code differs from what's already in them get redefined,
+     * and classes that no longer have any hooks are put back the way they were.
+     */
     public static void recycleHooks(SnoopSession session) throws InstrumentationException {
-        uninstallHooks(session);
-        installHooks(session);
+
+        if ( session == null ) {
+            return;
+        }
+
+        InstrumentationManager manager = SnoopAgent.getAgentManager();
+        manager.setDirectBytecode(session.isDirectBytecode());
+
+        promoteDeferredHooks(session, manager);
+
+        Map<Class,MethodChanges[]> changes = getChanges(session, manager);
+
+        List<Class> stale = new ArrayList<Class>();
+
+        for ( Class clazz : manager.getInstrumentedClasses() ) {
+            if ( ! changes.containsKey(clazz) ) {
+                stale.add(clazz);
+            }
+        }
+
+        int unchanged = 0;
+
+        for ( Iterator<Map.Entry<Class,MethodChanges[]>> it = changes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Class,MethodChanges[]> entry = it.next();
+            String current = manager.getFingerprint(entry.getKey());
+            if ( current != null && current.equals(MethodChanges.getFingerprint(entry.getValue())) ) {
+                it.remove();
+                unchanged++;
+            }
+        }
+
+        AgentLogger.debug("Recycling hooks: " + changes.size() + " classes changed, " + stale.size() + " to restore, " + unchanged + " untouched");
+
+        try {
+            manager.deinstrument(stale);
+        } catch(InstrumentationException e) {
+            AgentLogger.error("Problem de-instrumenting class", e);
+        }
+
+        manager.instrument(changes);
+
+        manager.setDeferredHooks(session.getDeferredHooks());
     }
 
     /**
@@ -50,49 +100,94 @@ public class SessionManager {
 
         InstrumentationManager manager = SnoopAgent.getAgentManager();
 
+        manager.setDeferredHooks(new ArrayList<DeferredHook>());
+
+        // gather everything first so the originals go back in one batch
+        Set<Class> classes = new LinkedHashSet<Class>();
+
         for (FunctionHook hook : snoopSession.getFunctionHooks()) {
 
             Class clazz = hook.getClazz();
 
-            /*if ( ! manager.hasClassBeenModified(clazz) ) {
-                continue;
-            }*/
-
             if ( ReflectionUtil.isInterfaceOrAbstract(clazz) || hook.isAppliedToSubtypes() ) {
 
                 Class[] subtypes = getAllSubtypes(clazz);
 
                 for (Class c : subtypes ) {
                     if ( manager.hasClassBeenModified(c) ) {
-                        manager.deinstrument(c);
+                        classes.add(c);
                     }
                 }
 
             }
 
-            try {
-                if ( manager.hasClassBeenModified(clazz) ) {
-                    manager.deinstrument(clazz);
-                } else {
-                    AgentLogger.debug("Not de-instrumenting " + clazz.getName() + " because it has no history");
-                }
-            } catch(InstrumentationException e) {
-                AgentLogger.error("Problem de-instrumenting class", e);
+            if ( manager.hasClassBeenModified(clazz) ) {
+                classes.add(clazz);
+            } else {
+                AgentLogger.debug("Not de-instrumenting " + clazz.getName() + " because it has no history");
             }
         }
+
+        try {
+            manager.deinstrument(classes);
+        } catch(InstrumentationException e) {
+            AgentLogger.error("Problem de-instrumenting class", e);
+        }
     }
 
     public static void installHooks(SnoopSession snoopSession) throws InstrumentationException {
 
-        HashMap<Class, ClassChanges> classChanges = new HashMap<Class,ClassChanges>();
-
         InstrumentationManager manager = SnoopAgent.getAgentManager();
+        manager.setDirectBytecode(snoopSession.isDirectBytecode());
 
-        for(FunctionHook hook : snoopSession.getFunctionHooks() ) {
+        promoteDeferredHooks(snoopSession, manager);
+
+        // build every class before redefining any of them, so the target
+        // only has to stop once
+        manager.instrument(getChanges(snoopSession, manager));
+
+        manager.setDeferredHooks(snoopSession.getDeferredHooks());
+    }
 
-            if ( ! hook.isEnabled() ) {
-                continue;
+    /**
+     * Moves the deferred hooks whose classes have loaded into the session's
+     * regular hooks. Those that were put in as their class loaded are
+     * already in place; the rest go in with the next instrumentation.
+     */
+    private static void promoteDeferredHooks(SnoopSession session, InstrumentationManager manager) {
+
+        if ( session.getDeferredHooks().isEmpty() ) {
+            return;
+        }
+
+        manager.promoteDeferredHooks();
+
+        for ( Iterator<DeferredHook> it = session.getDeferredHooks().iterator(); it.hasNext(); ) {
+
+            DeferredHook deferred = it.next();
+
+            if ( manager.resolveDeferredHook(deferred) ) {
+                AgentLogger.debug("Class " + deferred.getClassName() + " has loaded, hook on " + deferred.getHook().getMethodName() + " is no longer deferred");
+                session.getFunctionHooks().add(deferred.getHook());
+                it.remove();
             }
+        }
+    }
+
+    /**
+     * Works out the code each class needs for the session's hooks,
+     * publishing the hooks to the registry along the way.
+     */
+    private static Map<Class,MethodChanges[]> getChanges(SnoopSession snoopSession, InstrumentationManager manager) {
+
+        Map<Class, ClassChanges> classChanges = new LinkedHashMap<Class,ClassChanges>();
+
+        for(FunctionHook hook : snoopSession.getFunctionHooks() ) {
+
+            // disabled hooks are compiled in too, behind their switch, so
+            // turning them on later doesn't need a redefinition. publish
+            // what the injected code will see before it can run
+            HookRegistry.register(hook);
 
             String methodName = hook.getMethodName();
             Class[] parameterTypes = hook.getParameterTypes();
@@ -137,28 +232,21 @@ public class SessionManager {
 
         }
 
-        for ( Class clazz : classChanges.keySet() ) {
-
-            try {
-
-                ClassChanges change = classChanges.get(clazz);
-
-                manager.instrument(
-                        clazz,
-                        change.getAllMethodChanges());
-
-            } catch (InstrumentationException ex) {
-                throw ex;
-            }
+        Map<Class,MethodChanges[]> changes = new LinkedHashMap<Class,MethodChanges[]>();
 
+        for ( Class clazz : classChanges.keySet() ) {
+            changes.put(clazz, classChanges.get(clazz).getAllMethodChanges());
         }
+
+        return changes;
     }
 
     private static Class[] getAllSubtypes(Class clazz) {
         List<Class> subtypes = new ArrayList<Class>();
 
-        for(Class c : SnoopAgent.getAgentManager().getLoadedClasses() ) {
-            if ( clazz.isAssignableFrom(c) && ! c.isInterface() && ! c.equals(clazz)) {
+        // synthetic classes are left out, as getLoadedClasses() always has
+        for(Class c : SnoopAgent.getAgentManager().getSubtypes(clazz) ) {
+            if ( ! c.isInterface() && ! c.isSynthetic() ) {
                 subtypes.add(c);
             }
         }
@@ -20,24 +20,53 @@
 package com.aspect.snoop.agent.manager;
 
 import com.aspect.snoop.util.IOUtil;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
 import javassist.ClassPath;
 
+/**
+ * Finds the class files of the classes that came from one code source URL.
+ * Local jars are opened once and read straight from the open JarFile, rather
+ * than going through a jar: URL for every class. Only the most recently
+ * used jars are kept open, so a target with thousands of them doesn't run
+ * out of file handles; the rest are closed, and opened again if they're
+ * needed after that.
+ */
 public class SmartURLClassPath implements ClassPath {
 
+    private static final int MAX_OPEN_JARS = 64;
+
+    // the class paths with a jar open, least recently used first
+    private static final Map<SmartURLClassPath,Boolean> openJars = new LinkedHashMap<SmartURLClassPath,Boolean>(16, 0.75f, true);
+
+    // what readFromJar() gives back when the class path isn't a local jar
+    private static final byte[] NOT_A_JAR = new byte[0];
+
     protected URL url;
 
     private Map<String,Integer> classesResponsibleFor;
 
+    private JarFile jar;
+    private boolean jarFailed;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
     public SmartURLClassPath(URL url) {
         this.url = url;
-        this.classesResponsibleFor = new HashMap<String,Integer>();
+        this.classesResponsibleFor = new ConcurrentHashMap<String,Integer>();
     }
 
     public void addClass(String className) {
@@ -49,6 +78,20 @@ public class SmartURLClassPath implements ClassPath {
         return url.toString();
     }
 
+    /**
+     * @return how many class files have been found here
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many class files we were responsible for but couldn't find
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
     /**
      * Opens a class file with http.
      *
@@ -61,27 +104,163 @@ public class SmartURLClassPath implements ClassPath {
         }
 
         try {
-            return openClassfile0(classname);
+            // read in full, since the jar can be closed under an open stream
+            byte[] b = readFromJar(classname);
+            if ( b != NOT_A_JAR ) {
+                count(b != null);
+                return b == null ? null : new ByteArrayInputStream(b);
+            }
+
+            InputStream is = fetchClass( getURL(classname) );
+            count(is != null);
+            return is;
         }
         catch (IOException e) {e.printStackTrace();}
+        count(false);
         return null;        // not found
     }
 
+    /**
+     * Reads a class file in one go.
+     *
+     * @return null if the class file could not be found.
+     */
+    public byte[] getClassfile(String classname) throws IOException {
+
+        if ( classesResponsibleFor.get(classname) == null ) {
+            return null;
+        }
+
+        byte[] b = readFromJar(classname);
+
+        if ( b != NOT_A_JAR ) {
+            count(b != null);
+            return b;
+        }
+
+        InputStream is = fetchClass( getURL(classname) );
+        count(is != null);
+
+        if ( is == null ) {
+            return null;
+        }
+
+        try {
+            return IOUtil.getBytesFromStream(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /*
+     * Reads a class file out of the jar this class path points to. Returns
+     * null if it isn't there, or NOT_A_JAR if this isn't a local jar.
+     */
+    private byte[] readFromJar(String classname) throws IOException {
+
+        byte[] b = null;
+
+        // the jar's only closed while nobody's holding the lock
+        synchronized(this) {
+
+            JarFile jf = getJar();
+
+            if ( jf == null ) {
+                return NOT_A_JAR;
+            }
+
+            ZipEntry entry = jf.getEntry(getEntryName(classname));
+
+            if ( entry != null ) {
+                InputStream is = jf.getInputStream(entry);
+                try {
+                    b = readFully(is, (int)entry.getSize());
+                } finally {
+                    is.close();
+                }
+            }
+        }
+
+        used(this);
+        return b;
+    }
+
+    /*
+     * Moves a class path to the back of the open jars, and closes the one
+     * at the front if there are too many. Called without holding any class
+     * path's lock, so two of them closing each other can't deadlock.
+     */
+    private static void used(SmartURLClassPath cp) {
+
+        SmartURLClassPath eldest = null;
+
+        synchronized(openJars) {
+            openJars.put(cp, Boolean.TRUE);
+            if ( openJars.size() > MAX_OPEN_JARS ) {
+                eldest = openJars.keySet().iterator().next();
+                openJars.remove(eldest);
+            }
+        }
+
+        if ( eldest != null ) {
+            eldest.close();
+        }
+    }
+
+    private void count(boolean found) {
+        if ( found ) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+    }
+
+    private boolean isArchive() {
+        return url.getPath().endsWith(".jar") || url.getPath().endsWith(".zip");
+    }
+
+    private static String getEntryName(String classname) {
+        return classname.replace('.', '/') + ".class";
+    }
+
+    /*
+     * Opens the jar this class path points to, if it's a local one. Returns
+     * null if it isn't, or it couldn't be opened. The caller has to hold the
+     * lock for as long as it uses the jar.
+     */
+    private synchronized JarFile getJar() {
 
+        if ( jar != null || jarFailed ) {
+            return jar;
+        }
 
-    private InputStream openClassfile0(String classname) throws IOException {
+        if ( ! "file".equals(url.getProtocol()) || ! isArchive() ) {
+            jarFailed = true;
+            return null;
+        }
 
-        return fetchClass( getURL(classname) );
+        try {
+            File f;
+            try {
+                f = new File(url.toURI());
+            } catch (URISyntaxException e) {
+                f = new File(url.getPath());
+            }
+            jar = new JarFile(f, false);
+        } catch (IOException e) {
+            jarFailed = true;
+        }
 
+        return jar;
     }
 
     private URL getURL(String classname) throws MalformedURLException {
         
         URL finalUrl;
 
-        if ( url.getPath().endsWith(".jar") || url.getPath().endsWith(".zip") ) {
+        if ( isArchive() ) {
 
-            String finalPath = url.getPath() + "!" + "/" + classname.replace('.', '/') + ".class";
+            String finalPath = url.getPath() + "!" + "/" + getEntryName(classname);
             URL tmp = new URL(url.getProtocol(), url.getHost(), url.getPort(), finalPath);
 
             String s = "jar:" + tmp.toString();
@@ -89,7 +268,7 @@ public class SmartURLClassPath implements ClassPath {
 
         } else {
             
-            String finalPath = url.getPath() + classname.replace('.', '/') + ".class";
+            String finalPath = url.getPath() + getEntryName(classname);
             finalUrl = new URL(url.getProtocol(), url.getHost(), url.getPort(), finalPath);
 
         }
@@ -114,7 +293,22 @@ public class SmartURLClassPath implements ClassPath {
 
         try {
 
-            InputStream is = openClassfile0(classname);
+            Boolean inJar = null;
+
+            synchronized(this) {
+                JarFile jf = getJar();
+                if ( jf != null ) {
+                    // the central directory's enough, no need to open the entry
+                    inJar = jf.getEntry(getEntryName(classname)) != null;
+                }
+            }
+
+            if ( inJar != null ) {
+                used(this);
+                return inJar ? getURL(classname) : null;
+            }
+
+            InputStream is = fetchClass( getURL(classname) );
             if (is != null) {
                 is.close();
                 return getURL(classname);
@@ -127,9 +321,46 @@ public class SmartURLClassPath implements ClassPath {
     /**
      * Closes this class path.
      */
-    public void close() {}
+    public void close() {
+
+        synchronized(openJars) {
+            openJars.remove(this);
+        }
+
+        close0();
+    }
+
+    private synchronized void close0() {
 
+        if ( jar != null ) {
+            try {
+                jar.close();
+            } catch (IOException e) { }
+            jar = null;
+        }
+
+        jarFailed = false;
+    }
+
+    private static byte[] readFully(InputStream is, int size) throws IOException {
+
+        if ( size < 0 ) {
+            return IOUtil.getBytesFromStream(is);
+        }
 
+        byte[] b = new byte[size];
+        int len = 0;
+
+        while ( len < size ) {
+            int n = is.read(b, len, size - len);
+            if ( n < 0 ) {
+                throw new IOException("the stream was closed early");
+            }
+            len += n;
+        }
+
+        return b;
+    }
 
     public static byte[] getBytesFromURL(URL url)
         throws IOException
@@ -0,0 +1,159 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.agent.manager;
+
+import com.aspect.snoop.agent.AgentLogger;
+import java.util.List;
+import javassist.CannotCompileException;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.Modifier;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.MethodInfo;
+
+/**
+ * Wraps methods so hook code can go around them without going in them.
+ * The original body is moved to a private copy, and the method itself is
+ * left as a call to the copy that the hook code is added to. The copy
+ * keeps the size the JIT saw before it was hooked, so it can still be
+ * inlined.
+ *
+ * A loaded class can't be given new methods, so a method can only be
+ * wrapped while its class is being defined. After that, its class keeps
+ * the wrapper and the copy, and later changes and resets start from that
+ * shape.
+ */
+public class WrappedMethods {
+
+    private static final String COPY_SUFFIX = "$javasnoop";
+
+    /**
+     * Wraps the method if the changes ask for it and it can be done. A
+     * method that's already wrapped is left as it is, and the changes go
+     * into the wrapper either way.
+     *
+     * @param canAddMethods whether the class is still being defined
+     * @return whether the method is wrapped now
+     */
+    static boolean wrap(CtBehavior method, MethodChanges change, boolean canAddMethods) throws CannotCompileException {
+
+        if ( ! change.isWrapped() || ! canWrap(method) ) {
+            return isWrapped(method);
+        }
+
+        if ( isWrapped(method) ) {
+            return true;
+        }
+
+        if ( ! canAddMethods ) {
+            AgentLogger.warn("Can't wrap " + method.getLongName() + " now its class is loaded, hooking it inline. It'll be wrapped if the hook is in place when the class loads.");
+            return false;
+        }
+
+        wrap((CtMethod)method);
+        return true;
+    }
+
+    /**
+     * @return whether the method is a wrapper around a copy of itself
+     */
+    static boolean isWrapped(CtBehavior method) {
+
+        if ( ! canWrap(method) ) {
+            return false;
+        }
+
+        String copyName = method.getName() + COPY_SUFFIX;
+        String desc = method.getMethodInfo2().getDescriptor();
+
+        List methods = method.getDeclaringClass().getClassFile2().getMethods();
+
+        for ( Object o : methods ) {
+            MethodInfo info = (MethodInfo)o;
+            if ( copyName.equals(info.getName()) && desc.equals(info.getDescriptor()) ) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return whether the method's something we know how to wrap. Default
+     * and static interface methods aren't, since the wrapper's call to the
+     * copy would be a Methodref and fail with IncompatibleClassChangeError
+     */
+    static boolean canWrap(CtBehavior method) {
+        int mod = method.getModifiers();
+        return method instanceof CtMethod
+            && ! method.getDeclaringClass().isInterface()
+            && ! Modifier.isAbstract(mod) && ! Modifier.isNative(mod);
+    }
+
+    private static void wrap(CtMethod method) throws CannotCompileException {
+
+        CtClass cls = method.getDeclaringClass();
+        String copyName = method.getName() + COPY_SUFFIX;
+
+        // the copy takes the body as it is. it's only ever called from
+        // the wrapper, which already holds the lock if there is one
+        CtMethod copy = CtNewMethod.copy(method, copyName, cls, null);
+        int flags = copy.getMethodInfo().getAccessFlags();
+        flags &= ~(AccessFlag.PUBLIC | AccessFlag.PROTECTED | AccessFlag.SYNCHRONIZED);
+        copy.getMethodInfo().setAccessFlags(flags | AccessFlag.PRIVATE | AccessFlag.SYNTHETIC);
+        cls.addMethod(copy);
+
+        BytecodeChanges.Target target = new BytecodeChanges.Target(method);
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+        String desc = method.getMethodInfo().getDescriptor();
+
+        Bytecode b = target.newBytecode();
+
+        if ( isStatic ) {
+            target.pushParameters(b);
+            b.addInvokestatic(cls, copyName, desc);
+        } else {
+            b.addAload(0);
+            target.pushParameters(b);
+            b.addInvokespecial(cls, copyName, desc);
+        }
+
+        BytecodeChanges.addReturn(b, target.getReturnType());
+        b.setMaxLocals(target.getParameterSlots());
+
+        MethodInfo info = method.getMethodInfo();
+        CodeAttribute code = b.toCodeAttribute();
+
+        try {
+            info.setCodeAttribute(code);
+            code.computeMaxStack();
+            info.rebuildStackMapIf6(cls.getClassPool(), cls.getClassFile2());
+        } catch (BadBytecode e) {
+            throw new CannotCompileException(e);
+        }
+
+        AgentLogger.debug("Wrapped " + method.getLongName());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.ui;
+
+import com.aspect.snoop.agent.AgentLogger;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JTextPane;
+import javax.swing.Timer;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+
+/**
+ * Batches up console output so that a chatty hook doesn't bury the event
+ * dispatch thread. Any thread can append; a Swing timer moves whatever has
+ * piled up into the document in one go, then trims the oldest content so
+ * the console never holds more than the configured number of characters
+ * or lines.
+ */
+class ConsoleAppender implements ActionListener {
+
+    private static final int FLUSH_INTERVAL = 100;
+
+    private final JTextPane pane;
+    private final int maxChars;
+    private final int maxLines;
+
+    private final ConcurrentLinkedQueue<Segment> pending = new ConcurrentLinkedQueue<Segment>();
+    private final AtomicInteger pendingChars = new AtomicInteger();
+
+    private final Timer timer;
+
+    /**
+     * @param maxChars the most characters to keep, or 0 for no limit
+     * @param maxLines the most lines to keep, or 0 for no limit
+     */
+    ConsoleAppender(JTextPane pane, int maxChars, int maxLines) {
+        this.pane = pane;
+        this.maxChars = maxChars;
+        this.maxLines = maxLines;
+        this.timer = new Timer(FLUSH_INTERVAL, this);
+        this.timer.start();
+    }
+
+    /**
+     * Can be called from any thread.
+     */
+    void append(String text, AttributeSet attributes) {
+
+        Segment segment = new Segment(text, attributes);
+        pending.add(segment);
+
+        int total = pendingChars.addAndGet(text.length());
+
+        /*
+         * If the EDT falls behind, don't queue up more than the console is
+         * going to keep anyway.
+         */
+        if ( maxChars > 0 ) {
+            while ( total > maxChars && pending.peek() != segment ) {
+                Segment old = pending.poll();
+                if ( old == null ) {
+                    break;
+                }
+                total = pendingChars.addAndGet(-old.text.length());
+            }
+        }
+    }
+
+    /**
+     * Throws away anything that hasn't been written yet. Only call this from
+     * the EDT.
+     */
+    void clear() {
+        pending.clear();
+        pendingChars.set(0);
+    }
+
+    /**
+     * Called on the EDT by the timer.
+     */
+    public void actionPerformed(ActionEvent e) {
+
+        if ( pending.isEmpty() ) {
+            return;
+        }
+
+        Document doc = pane.getDocument();
+
+        try {
+
+            StringBuilder run = new StringBuilder();
+            AttributeSet runAttributes = null;
+
+            Segment segment;
+
+            while ( (segment = pending.poll()) != null ) {
+
+                pendingChars.addAndGet(-segment.text.length());
+
+                // consecutive messages in the same style go in as one insert
+                if ( runAttributes != null && segment.attributes != runAttributes ) {
+                    doc.insertString(doc.getLength(), run.toString(), runAttributes);
+                    run.setLength(0);
+                }
+
+                run.append(segment.text);
+                runAttributes = segment.attributes;
+            }
+
+            if ( run.length() > 0 ) {
+                doc.insertString(doc.getLength(), run.toString(), runAttributes);
+            }
+
+            trim(doc);
+
+            pane.setCaretPosition(doc.getLength());
+
+        } catch (BadLocationException ex) {
+            AgentLogger.error(ex);
+        }
+    }
+
+    private void trim(Document doc) throws BadLocationException {
+
+        int remove = 0;
+
+        if ( maxChars > 0 && doc.getLength() > maxChars ) {
+            remove = doc.getLength() - maxChars;
+        }
+
+        Element root = doc.getDefaultRootElement();
+
+        if ( maxLines > 0 && root.getElementCount() > maxLines ) {
+            remove = Math.max(remove, root.getElement(root.getElementCount() - maxLines).getStartOffset());
+        }
+
+        if ( remove == 0 ) {
+            return;
+        }
+
+        // cut at a line boundary so we don't leave half a message at the top
+        Element line = root.getElement(root.getElementIndex(remove));
+        if ( line.getStartOffset() < remove ) {
+            remove = Math.min(line.getEndOffset(), doc.getLength());
+        }
+
+        doc.remove(0, remove);
+    }
+
+    private static class Segment {
+        final String text;
+        final AttributeSet attributes;
+        Segment(String text, AttributeSet attributes) {
+            this.text = text;
+            this.attributes = attributes;
+        }
+    }
+}
@@ -25,7 +25,12 @@ import com.aspect.snoop.JavaSnoop;
 import com.aspect.snoop.MethodWrapper;
 import com.aspect.snoop.SnoopSession;
 import com.aspect.snoop.agent.AgentLogger;
+import com.aspect.snoop.agent.event.StackTable;
+import com.aspect.snoop.agent.manager.HookRegistry;
+import com.aspect.snoop.agent.manager.HookSnapshot;
 import com.aspect.snoop.agent.manager.InstrumentationManager;
+import com.aspect.snoop.agent.manager.MethodDescriptor;
+import com.aspect.snoop.agent.manager.MethodRegistry;
 import com.aspect.snoop.agent.manager.SessionManager;
 import com.aspect.snoop.ui.canary.StartCanaryModeView;
 import com.aspect.snoop.ui.choose.clazz.ChooseClassView;
@@ -40,9 +45,9 @@ import com.aspect.snoop.ui.pause.PauseView;
 import com.aspect.snoop.ui.script.EditScriptView;
 import com.aspect.snoop.ui.tamper.Parameter;
 import com.aspect.snoop.ui.tamper.ParameterTamperingView;
-import com.aspect.snoop.util.ConditionUtil;
 import com.aspect.snoop.util.IOUtil;
 import com.aspect.snoop.util.JadUtil;
+import com.aspect.snoop.util.ModelUIUtil;
 import com.aspect.snoop.util.SessionPersistenceUtil;
 import com.aspect.snoop.util.UIUtil;
 import java.awt.Color;
@@ -58,14 +63,9 @@ import java.awt.event.MouseEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.awt.event.WindowStateListener;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.text.DateFormat;
@@ -80,8 +80,10 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import javax.imageio.ImageIO;
+import javax.swing.DefaultCellEditor;
 import javax.swing.JButton;
 import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
@@ -90,7 +92,6 @@ import javax.swing.JTextPane;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
-import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
@@ -114,6 +115,10 @@ public class JavaSnoopView extends javax.swing.JFrame {
 
     private SnoopSession currentSession;
     private StyledDocument console;
+    private ConsoleAppender consoleAppender;
+
+    private static final SimpleAttributeSet snoopMessageAttributes = getConsoleAttributes(Color.blue);
+    private static final SimpleAttributeSet errorMessageAttributes = getConsoleAttributes(Color.red);
 
     private boolean firstTimeLoading = true;
 
@@ -167,6 +172,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
                         ConditionTableModel model = (ConditionTableModel)tblConditions.getModel();
                         Condition c = model.getConditionAt(tblConditions.getSelectedRow());
                         hook.removeCondition(c);
+                        conditionsChanged();
                         tblConditions.repaint();
                         tblConditions.updateUI();
                     }
@@ -254,6 +260,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
         jvmMenu = new javax.swing.JMenu();
         mnuGetProcessInfo = new javax.swing.JMenuItem();
         mnuDumpThreads = new javax.swing.JMenuItem();
+        mnuShowCallerSummary = new javax.swing.JMenuItem();
         mnuOpenScriptingConsole = new javax.swing.JMenuItem();
         mnuStartCanaryMode = new javax.swing.JMenuItem();
         mnuDumpAllSourceCode = new javax.swing.JMenuItem();
@@ -274,6 +281,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
         mnuManageJad = new javax.swing.JMenu();
         chkShowMethodCode = new javax.swing.JCheckBoxMenuItem();
         mnuSetJadPath = new javax.swing.JMenuItem();
+        chkDirectBytecode = new javax.swing.JCheckBoxMenuItem();
         javax.swing.JMenu helpMenu = new javax.swing.JMenu();
         javax.swing.JMenuItem mnuAbout = new javax.swing.JMenuItem();
         mnuGotoHomePage = new javax.swing.JMenuItem();
@@ -734,6 +742,12 @@ public class JavaSnoopView extends javax.swing.JFrame {
         mnuDumpThreads.setName("mnuDumpThreads"); // NOI18N
         jvmMenu.add(mnuDumpThreads);
 
+        mnuShowCallerSummary.setAction(actionMap.get("showCallerSummary")); // NOI18N
+        mnuShowCallerSummary.setText(resourceMap.getString("mnuShowCallerSummary.text")); // NOI18N
+        mnuShowCallerSummary.setToolTipText(resourceMap.getString("mnuShowCallerSummary.toolTipText")); // NOI18N
+        mnuShowCallerSummary.setName("mnuShowCallerSummary"); // NOI18N
+        jvmMenu.add(mnuShowCallerSummary);
+
         mnuOpenScriptingConsole.setAction(actionMap.get("openScriptingConsole")); // NOI18N
         mnuOpenScriptingConsole.setText(resourceMap.getString("mnuOpenScriptingConsole.text")); // NOI18N
         mnuOpenScriptingConsole.setToolTipText(resourceMap.getString("mnuOpenScriptingConsole.toolTipText")); // NOI18N
@@ -904,6 +918,16 @@ public class JavaSnoopView extends javax.swing.JFrame {
 
         settingsMenu.add(mnuManageJad);
 
+        chkDirectBytecode.setText(resourceMap.getString("chkDirectBytecode.text")); // NOI18N
+        chkDirectBytecode.setToolTipText(resourceMap.getString("chkDirectBytecode.toolTipText")); // NOI18N
+        chkDirectBytecode.setName("chkDirectBytecode"); // NOI18N
+        chkDirectBytecode.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                chkDirectBytecodeActionPerformed(evt);
+            }
+        });
+        settingsMenu.add(chkDirectBytecode);
+
         menuBar.add(settingsMenu);
 
         helpMenu.setText(resourceMap.getString("helpMenu.text")); // NOI18N
@@ -994,43 +1018,40 @@ public class JavaSnoopView extends javax.swing.JFrame {
     private void chkOutputToFileActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkOutputToFileActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setOutputToFile(chkOutputToFile.isSelected());
+        HookRegistry.update(hook);
 }//GEN-LAST:event_chkOutputToFileActionPerformed
 
     private void chkOutputToConsoleActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkOutputToConsoleActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setOutputToConsole(chkOutputToConsole.isSelected());
+        HookRegistry.update(hook);
 }//GEN-LAST:event_chkOutputToConsoleActionPerformed
 
     private void chkPrintParametersActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkPrintParametersActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setShouldPrintParameters(chkPrintParameters.isSelected());
 
-        if ( hook.isEnabled() ) {
-            sendAgentNewRules();
-        }
+        hookChanged(hook);
 }//GEN-LAST:event_chkPrintParametersActionPerformed
 
     private void chkPrintStackTraceActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkPrintStackTraceActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setShouldPrintStackTrace(chkPrintStackTrace.isSelected());
 
-        if ( hook.isEnabled() ) {
-            sendAgentNewRules();
-        }
+        hookChanged(hook);
 }//GEN-LAST:event_chkPrintStackTraceActionPerformed
 
     private void txtOutputFileKeyReleased(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_txtOutputFileKeyReleased
         FunctionHook hook = getCurrentHook();
         hook.setOutputFile(txtOutputFile.getText());
+        HookRegistry.update(hook);
 }//GEN-LAST:event_txtOutputFileKeyReleased
 
     private void chkRunScriptActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkRunScriptActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setShouldRunScript(chkRunScript.isSelected());
 
-        if ( hook.isEnabled() ) {
-            sendAgentNewRules();
-        }
+        hookChanged(hook);
 }//GEN-LAST:event_chkRunScriptActionPerformed
 
     private void btnEditScriptActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnEditScriptActionPerformed
@@ -1056,42 +1077,39 @@ public class JavaSnoopView extends javax.swing.JFrame {
         FunctionHook hook = model.getHookFromRow(tblFunctionsHooked.getSelectedRow());
         hook.setShouldTamperParameters(chkTamperParameters.isSelected());
 
-        if ( hook.isEnabled() ) {
-            sendAgentNewRules();
-        }
+        hookChanged(hook);
     }//GEN-LAST:event_chkTamperParametersActionPerformed
 
     private void chkTamperReturnValueActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkTamperReturnValueActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setShouldTamperReturnValue(chkTamperReturnValue.isSelected());
 
-        if ( hook.isEnabled() ) {
-            sendAgentNewRules();
-        }
+        hookChanged(hook);
 }//GEN-LAST:event_chkTamperReturnValueActionPerformed
 
     private void chkPauseActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkPauseActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setShouldPause(chkPause.isSelected());
 
-        if ( hook.isEnabled() ) {
-            sendAgentNewRules();
-        }
+        hookChanged(hook);
 }//GEN-LAST:event_chkPauseActionPerformed
 
     private void rdoAlwaysHookActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rdoAlwaysHookActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setMode(Mode.AlwaysIntercept);
+        conditionsChanged();
 }//GEN-LAST:event_rdoAlwaysHookActionPerformed
 
     private void rdoHookIfActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rdoHookIfActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setMode(Mode.InterceptIf);
+        conditionsChanged();
 }//GEN-LAST:event_rdoHookIfActionPerformed
 
     private void rdoDontHookIfActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rdoDontHookIfActionPerformed
         FunctionHook hook = getCurrentHook();
         hook.setMode(Mode.DontInterceptIf);
+        conditionsChanged();
 }//GEN-LAST:event_rdoDontHookIfActionPerformed
 
     private void btnAddNewConditionActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnAddNewConditionActionPerformed
@@ -1118,6 +1136,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
                     view.getOperand());
 
             hook.addCondition(condition);
+            conditionsChanged();
 
             setTableDimensions();
 
@@ -1213,9 +1232,9 @@ public class JavaSnoopView extends javax.swing.JFrame {
 
                     statusMessageLabel.setText("Setting hooks...");
 
-                    SessionManager.uninstallHooks(currentSession);
                     currentSession.getFunctionHooks().remove(hook);
-                    SessionManager.installHooks(currentSession);
+                    HookRegistry.unregister(hook);
+                    SessionManager.recycleHooks(currentSession);
 
                     FunctionsHookedTableModel model = (FunctionsHookedTableModel) tblFunctionsHooked.getModel();
                     model.removeHook(hook);
@@ -1356,6 +1375,17 @@ public class JavaSnoopView extends javax.swing.JFrame {
         JavaSnoop.saveProperties();
 }//GEN-LAST:event_chkShowMethodCodeActionPerformed
 
+    private void chkDirectBytecodeActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkDirectBytecodeActionPerformed
+        currentSession.setDirectBytecode(chkDirectBytecode.isSelected());
+        currentSession.markAsUnsaved();
+        try {
+            SessionManager.recycleHooks(currentSession);
+        } catch (Exception ex) {
+            UIUtil.showErrorMessage(this, "Failure establishing hooks: " + ex.getMessage());
+            AgentLogger.error("Failure establishing hooks", ex);
+        }
+}//GEN-LAST:event_chkDirectBytecodeActionPerformed
+
     private void mnuViewFAQActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuViewFAQActionPerformed
         try {
             Desktop.getDesktop().browse(URI.create(faqUrl));
@@ -1428,6 +1458,18 @@ public class JavaSnoopView extends javax.swing.JFrame {
         sb.append("Classes loaded: ");
         sb.append(manager.getLoadedClasses().size());
         sb.append(nl);
+        sb.append("Class pools: ");
+        sb.append(manager.getClassPools());
+        sb.append(nl);
+        sb.append("Class bytes cache: ");
+        sb.append(manager.getClassBytesCache());
+        sb.append(nl);
+        sb.append("Instrumented class cache: ");
+        sb.append(manager.getInstrumentedClassCache());
+        sb.append(nl);
+        sb.append("Class history: ");
+        sb.append(manager.getClassHistory());
+        sb.append(nl);
         sb.append("System properties: ");
         sb.append(nl);
         Properties p = System.getProperties();
@@ -1489,6 +1531,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
     private javax.swing.JButton btnEditScript;
     private javax.swing.ButtonGroup btnGrpHookConditions;
     private javax.swing.JCheckBox chkOutputToConsole;
+    private javax.swing.JCheckBoxMenuItem chkDirectBytecode;
     private javax.swing.JCheckBox chkOutputToFile;
     private javax.swing.JCheckBox chkPause;
     private javax.swing.JCheckBox chkPrintParameters;
@@ -1531,6 +1574,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
     private javax.swing.JMenuItem mnuSaveSession;
     private javax.swing.JMenuItem mnuSaveSessionAs;
     private javax.swing.JMenuItem mnuSetJadPath;
+    private javax.swing.JMenuItem mnuShowCallerSummary;
     private javax.swing.JMenuItem mnuStartCanaryMode;
     private javax.swing.JMenuItem mnuViewFAQ;
     private javax.swing.JScrollPane pnlCode;
@@ -1551,13 +1595,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
     private javax.swing.JTextField txtOutputFile;
     // End of variables declaration//GEN-END:variables
 
-   public void pause(String className, int hookId, Object[] parameters, Class[] types) {
-
-        FunctionHook hook = getHookById(hookId);
-
-        if (!hook.isEnabled() || !areConditionsMet(hook.getMode(), hook.getConditions(), parameters)) {
-            return;
-        }
+   public void pause(String className, HookSnapshot hook, Object[] parameters, Class[] types) {
 
         /*
          * Decide whether or not to show the code.
@@ -1591,93 +1629,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
         return sb.toString();
     }
 
-    public void printParameters(String className, int hookId, Object[] parameters, Class[] types) {
-
-        FunctionHook hook = getHookById(hookId);
-
-        if ( hook == null ) {
-            showConsoleErrorMessage("Didn't recognize hook " + hookId + " for class " + className);
-        }
-
-        if (!hook.isEnabled() || ! hook.shouldPrintParameters() || !areConditionsMet(hook.getMode(), hook.getConditions(), parameters)) {
-            return;
-        }
-
-        StringBuilder sb = new StringBuilder();
-
-        sb.append(getTimeStamp());
-        sb.append("Print parameter request from: " + className + "." + hook.getMethodName() + "(" + join(types) + "): " + nl);
-
-        for (int i = 0; i < parameters.length; i++) {
-            Object o = parameters[i];
-            sb.append("Parameter " + (i + 1) + " (type: " + types[i].getSimpleName() + "): " + String.valueOf(o) + nl);
-        }
-
-        sb.append(nl);
-
-        if ( hook.isOutputToConsole()) {
-            showSnoopMessage(sb.toString());
-        }
-
-        if (hook.isOutputToFile()) {
-            File f = new File(hook.getOutputFile());
-            try {
-                FileOutputStream fos = new FileOutputStream(f, true);
-                fos.write(sb.toString().getBytes());
-                fos.close();
-            } catch (FileNotFoundException fnfe) {
-                showConsoleErrorMessage("Failed to append data to file. Could not find or write to file: " + f.getAbsolutePath());
-            } catch (IOException ioe) {
-                showConsoleErrorMessage("Failed to append data to file. Problem writing to file " + f.getAbsolutePath() + ": " + ioe.getMessage());
-            }
-        }
-
-    }
-
-    public void printStackTrace(String className, int hookId, Object[] parameters, Class[] types) {
-
-        FunctionHook hook = getHookById(hookId);
-
-        if (!hook.isEnabled() || ! hook.shouldPrintStackTrace() || !areConditionsMet(hook.getMode(), hook.getConditions(), parameters)) {
-            return;
-        }
-
-        StringBuilder sb = new StringBuilder();
-        sb.append(getTimeStamp());
-        sb.append("Stack trace print request from: " + className + "." + hook.getMethodName() + "(" + join(types) + "):" + nl);
-
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        new Exception().printStackTrace(pw);
-        sb.append( skipLines(sw.toString(),3) + nl);
-
-        if ( hook.isOutputToConsole()) {
-            showSnoopMessage(sb.toString());
-        }
-
-        if (hook.isOutputToFile()) {
-            File f = new File(hook.getOutputFile());
-            if (f.exists() && f.canWrite()) {
-                try {
-                    FileOutputStream fos = new FileOutputStream(f, true);
-                    fos.write(sb.toString().getBytes());
-                    fos.close();
-                } catch (FileNotFoundException fnfe) {
-                    showConsoleErrorMessage("Failed to append data to file. Could not find or write to file: " + f.getAbsolutePath());
-                } catch (IOException ioe) {
-                    showConsoleErrorMessage("Failed to append data to file. Problem writing to file " + f.getAbsolutePath() + ": " + ioe.getMessage());
-                }
-            }
-        }
-
-    }
-
-    public Object tamperWithReturnValue(String className, int hookId, Object[] parameters, Class[] types, Object retVal, Class retValType) {
-        FunctionHook hook = getHookById(hookId);
-
-        if (!hook.isEnabled() || !areConditionsMet(hook.getMode(), hook.getConditions(), parameters)) {
-            return retVal;
-        }
+    public Object tamperWithReturnValue(String className, HookSnapshot hook, Object[] parameters, Class[] types, Object retVal, Class retValType) {
 
         /*
          * Decide whether or not to show the code.
@@ -1712,7 +1664,8 @@ public class JavaSnoopView extends javax.swing.JFrame {
         UIUtil.waitForInput(view);
 
         if ( view.shouldDisable() ) {
-            hook.setEnabled(false);
+            hook.getHook().setEnabled(false);
+            HookRegistry.update(hook.getHook());
             updateSessionUI(false);
         }
 
@@ -1721,13 +1674,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
     }
 
 
-    public Object[] tamperWithParameters(String className, int hookId, Object[] parameters, Class[] types) {
-
-        FunctionHook hook = getHookById(hookId);
-
-        if (!hook.isEnabled() || !areConditionsMet(hook.getMode(), hook.getConditions(), parameters)) {
-            return parameters;
-        }
+    public Object[] tamperWithParameters(String className, HookSnapshot hook, Object[] parameters, Class[] types) {
 
         /*
          * Decide whether or not to show the code.
@@ -1762,7 +1709,8 @@ public class JavaSnoopView extends javax.swing.JFrame {
         UIUtil.waitForInput(view);
 
         if ( view.shouldDisable() ) {
-            hook.setEnabled(false);
+            hook.getHook().setEnabled(false);
+            HookRegistry.update(hook.getHook());
             updateSessionUI(false);
         }
 
@@ -1777,80 +1725,76 @@ public class JavaSnoopView extends javax.swing.JFrame {
 
     }
 
-    public FunctionHook getHookById(int hookId) {
+    public HookSnapshot getHookById(int hookId) {
+        return HookRegistry.get(hookId);
+    }
 
-        FunctionsHookedTableModel model = (FunctionsHookedTableModel) tblFunctionsHooked.getModel();
+    /**
+     * Conditions on primitive and String parameters are compiled right into
+     * the hooked methods, so editing a live hook means re-instrumenting.
+     */
+    public void conditionsChanged() {
+        FunctionHook hook = getCurrentHook();
+        if ( hook == null ) {
+            return;
+        }
+        hookChanged(hook);
+    }
 
-        for (int i = 0; i < model.getRowCount(); i++) {
-            FunctionHook hook = model.getHookFromRow(i);
-            if (hook.hashCode() == hookId) {
-                return hook;
-            }
+    /**
+     * Once a hook's been installed, its code stays in the class even while
+     * it's disabled, so any edit that changes the code has to go out. A
+     * disabled hook that was never installed can wait until it's enabled.
+     */
+    public void hookChanged(FunctionHook hook) {
+        if ( hook.isEnabled() || HookRegistry.getId(hook) != -1 ) {
+            sendAgentNewRules();
+        } else {
+            HookRegistry.update(hook);
         }
+    }
 
-        return null;
+    /**
+     * Turns an installed hook on or off by flipping its switch, which
+     * doesn't touch the class. Hooks that were never installed still need
+     * their code put in.
+     */
+    public void hookEnabledChanged(FunctionHook hook) {
+        if ( HookRegistry.setEnabled(hook) ) {
+            statusMessageLabel.setText((hook.isEnabled() ? "Enabled" : "Disabled") + " hook at " + getHumanTime());
+        } else if ( hook.isEnabled() ) {
+            sendAgentNewRules();
+        }
     }
 
+    /**
+     * Queues the message for the console. It can be called from any thread;
+     * the console catches up on the EDT a few times a second.
+     */
     public void showSnoopMessage(String s) {
-
-        SimpleAttributeSet attributes = new SimpleAttributeSet();
-        attributes.addAttribute(StyleConstants.CharacterConstants.Bold, Boolean.FALSE);
-        attributes.addAttribute(StyleConstants.CharacterConstants.Italic, Boolean.FALSE);
-        attributes.addAttribute(StyleConstants.CharacterConstants.Foreground, Color.blue);
-
-        try {
-            console.insertString(console.getLength(), s, attributes);
-            txtConsole.setCaretPosition( console.getLength() );
-        } catch (BadLocationException ex) {
-            AgentLogger.error(ex);
-        }
+        consoleAppender.append(s, snoopMessageAttributes);
     }
 
     public void showConsoleErrorMessage(String message) {
+        consoleAppender.append("[SNOOP ERROR] " + message + nl, errorMessageAttributes);
+    }
 
+    private static SimpleAttributeSet getConsoleAttributes(Color color) {
         SimpleAttributeSet attributes = new SimpleAttributeSet();
-         attributes.addAttribute(StyleConstants.CharacterConstants.Bold, Boolean.FALSE);
+        attributes.addAttribute(StyleConstants.CharacterConstants.Bold, Boolean.FALSE);
         attributes.addAttribute(StyleConstants.CharacterConstants.Italic, Boolean.FALSE);
-       attributes.addAttribute(StyleConstants.CharacterConstants.Foreground, Color.red);
-
-        try {
-
-            console.insertString(console.getLength(), "[SNOOP ERROR] " + message + nl, attributes);
-
-        } catch (BadLocationException ex) {
-            AgentLogger.error(ex);
-        }
+        attributes.addAttribute(StyleConstants.CharacterConstants.Foreground, color);
+        return attributes;
     }
 
-    /**
-     * Function to decide whether or not the conditions are satisfied.
-     * @param mode
-     * @param conditions
-     * @return
-     */
-    private boolean areConditionsMet(Mode mode, List<Condition> conditions, Object[] parameters) {
-
-        if (mode.equals(Mode.AlwaysIntercept)) {
-            return true;
-        } else if (mode.equals(Mode.InterceptIf)) {
-            // all conditions have to be true - if we reach an
-            // enabled condition that is false, we return false
-            for (Condition c : conditions) {
-                if (c.isEnabled() && !ConditionUtil.evaluate(c, parameters[c.getParameter()])) {
-                    return false;
-                }
-            }
-        } else if (mode.equals(Mode.DontInterceptIf)) {
-            // all conditions have to be false - if we reach an
-            // enabled condition that is true, we return false
-            for (Condition c : conditions) {
-                if (c.isEnabled() && ConditionUtil.evaluate(c, parameters[c.getParameter()])) {
-                    return false;
-                }
-            }
-        }
+    private static final int DEFAULT_CONSOLE_MAX_CHARS = 1000000;
+    private static final int DEFAULT_CONSOLE_MAX_LINES = 20000;
 
-        return true;
+    private static int getConsoleLimit(String key, int def) {
+        if ( JavaSnoop.getProperty(key) == null ) {
+            return def;
+        }
+        return Math.max(0, JavaSnoop.getIntProperty(key));
     }
 
     public FunctionHook getCurrentHook() {
@@ -1886,6 +1830,7 @@ public class JavaSnoopView extends javax.swing.JFrame {
             FunctionsHookedTableModel model = (FunctionsHookedTableModel) tblFunctionsHooked.getModel();
             model.removeHook(hook);
             currentSession.getFunctionHooks().remove(hook);
+            HookRegistry.unregister(hook);
         }
 
     }
@@ -1898,6 +1843,10 @@ public class JavaSnoopView extends javax.swing.JFrame {
 
         if ( firstTimeLoading ) {
             initComponents();
+            consoleAppender = new ConsoleAppender(
+                    txtConsole,
+                    getConsoleLimit(JavaSnoop.CONSOLE_MAX_CHARS, DEFAULT_CONSOLE_MAX_CHARS),
+                    getConsoleLimit(JavaSnoop.CONSOLE_MAX_LINES, DEFAULT_CONSOLE_MAX_LINES));
             firstTimeLoading = false;
         }
 
@@ -2051,7 +2000,8 @@ public class JavaSnoopView extends javax.swing.JFrame {
 
     private void showCodeIfNeeded(Class clazz) {
         boolean useJad = chkShowMethodCode.isSelected();
-        if (useJad) {
+        // hooks put in as their class loaded may not have their class yet
+        if (useJad && clazz != null) {
             byte[] bytes = IOUtil.getClassBytes(clazz);
             try {
 
@@ -2069,26 +2019,6 @@ public class JavaSnoopView extends javax.swing.JFrame {
         txtCode.setCaretPosition(0);
     }
 
-    private String skipLines(String st, int num) {
-        StringReader sr = new StringReader(st);
-        BufferedReader br = new BufferedReader(sr);
-        StringBuilder sb = new StringBuilder();
-
-        try {
-            while(num>0) {
-                br.readLine();
-                num--;
-            }
-            String buff;
-            while((buff=br.readLine())!=null) {
-                sb.append(buff);
-                sb.append(nl);
-            }
-        } catch(IOException ioe){}
-
-        return sb.toString();
-    }
-
     private void disableAllComponentsForCanaryMode() {
         recursiveSetEnabled(this, false);
     }
@@ -2309,10 +2239,13 @@ public class JavaSnoopView extends javax.swing.JFrame {
         }
 
         if ( shouldOverwriteConsole ) {
+            consoleAppender.clear();
             txtConsole.setText("");
             showSnoopMessage(currentSession.getOutput());
         }
 
+        chkDirectBytecode.setSelected(currentSession.isDirectBytecode());
+
         tblFunctionsHooked.setModel(new FunctionsHookedTableModel(currentSession.getFunctionHooks()));
 
         // if there are any functions hooked, select the first one
@@ -2375,6 +2308,19 @@ public class JavaSnoopView extends javax.swing.JFrame {
         tblFunctionsHooked.getColumnModel().getColumn(2).setMinWidth(75);
         tblFunctionsHooked.getColumnModel().getColumn(2).setResizable(false);
 
+        // pick a sampling mode from the list, or type in your own N
+        JComboBox samplingChoices = new JComboBox(ModelUIUtil.samplingChoices);
+        samplingChoices.setEditable(true);
+        tblFunctionsHooked.getColumnModel().getColumn(3).setCellEditor(new DefaultCellEditor(samplingChoices));
+        tblFunctionsHooked.getColumnModel().getColumn(3).setWidth(110);
+        tblFunctionsHooked.getColumnModel().getColumn(3).setMaxWidth(110);
+        tblFunctionsHooked.getColumnModel().getColumn(3).setMinWidth(110);
+
+        tblFunctionsHooked.getColumnModel().getColumn(4).setWidth(70);
+        tblFunctionsHooked.getColumnModel().getColumn(4).setMaxWidth(70);
+        tblFunctionsHooked.getColumnModel().getColumn(4).setMinWidth(70);
+        tblFunctionsHooked.getColumnModel().getColumn(4).setResizable(false);
+
         //tblFunctionsHooked.setIntercellSpacing(new Dimension(15,1));
 
         tblConditions.getColumnModel().getColumn(0).setWidth(60);
@@ -2447,6 +2393,43 @@ public class JavaSnoopView extends javax.swing.JFrame {
         showSnoopMessage(sb.toString());
     }
 
+    @Action
+    public void showCallerSummary() {
+
+        List<StackTable.Entry> entries = StackTable.getEntries();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(getTimeStamp());
+        sb.append("Caller summary (" + entries.size() + " distinct stacks):" + nl);
+
+        if ( StackTable.getUntrackedCount() > 0 ) {
+            sb.append("(" + StackTable.getUntrackedCount() + " stacks weren't counted, the table was full)" + nl);
+        }
+
+        int lastMethod = -1;
+
+        for(StackTable.Entry entry : entries) {
+
+            if ( entry.getMethodId() != lastMethod ) {
+                MethodDescriptor method = MethodRegistry.get(entry.getMethodId());
+                sb.append(method.getClassName() + "." + method.getName() + "(" + join(method.getParameterTypes()) + "):" + nl);
+                lastMethod = entry.getMethodId();
+            }
+
+            StackTraceElement[] frames = entry.getFrames();
+
+            sb.append("  ");
+            sb.append(entry.getCount());
+            sb.append("x stack #");
+            sb.append(entry.getId());
+            sb.append(" from ");
+            sb.append(frames.length > 0 ? frames[0].toString() : "(unknown)");
+            sb.append(nl);
+        }
+
+        showSnoopMessage(sb.toString());
+    }
+
     @Action
     public void dumpSourceCode() {
 
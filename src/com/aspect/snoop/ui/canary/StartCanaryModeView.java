@@ -26,6 +26,7 @@ import com.aspect.snoop.agent.SnoopAgent;
 import com.aspect.snoop.agent.manager.InstrumentationException;
 import com.aspect.snoop.agent.manager.InstrumentationManager;
 import com.aspect.snoop.agent.manager.MethodChanges;
+import com.aspect.snoop.agent.manager.MethodRegistry;
 import com.aspect.snoop.util.CanaryUtil;
 import com.aspect.snoop.util.ClasspathUtil;
 import com.aspect.snoop.util.StringUtil;
@@ -40,7 +41,9 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import javax.swing.AbstractAction;
 import javax.swing.JButton;
@@ -343,13 +346,14 @@ public class StartCanaryModeView extends javax.swing.JDialog {
 
                     AgentLogger.debug("Applying canaries to " + targetClasses.size() + " classes...");
 
+                    Map<Class,MethodChanges[]> changes = new LinkedHashMap<Class,MethodChanges[]>();
+
                     for (int i=0;i<targetClasses.size();i++) {
 
                         if ( isCancelled() )
                             return null;
 
                         Class c = targetClasses.get(i);
-                        String clsName = c.getName();
 
                         prgCanary.setValue(i);
                         prgCanary.setString("Adding canaries to class " + c.getName() + " (" + (i+1) + "/" + (targetClasses.size()+1) + ")");
@@ -413,7 +417,12 @@ public class StartCanaryModeView extends javax.swing.JDialog {
                                     MethodWrapper wrapper = MethodWrapper.getWrapper((AccessibleObject) m);
 
                                     MethodChanges change = new MethodChanges((AccessibleObject) m);
-                                    change.setNewStartSrc(CanaryUtil.getChirp(canaryType, clsName, wrapper.getName(), wrapper.getReturnType().getName()));
+                                    int methodId = MethodRegistry.register(c, (AccessibleObject) m);
+                                    if ( manager.isDirectBytecode() ) {
+                                        change.setBytecode(CanaryUtil.getChirpBytecode(canaryType, methodId));
+                                    } else {
+                                        change.setNewStartSrc(CanaryUtil.getChirp(canaryType, methodId));
+                                    }
 
                                     AgentLogger.debug("Applying canary to " + wrapper.getDescription());
                                     sb.append(wrapper.getDescription());
@@ -424,18 +433,30 @@ public class StartCanaryModeView extends javax.swing.JDialog {
                             }
                         }
 
-                        try {
-                            manager.instrument(c, classChanges.toArray(new MethodChanges[]{}));
-                            clsCount++;
-                        } catch (InstrumentationException ex) {
-                            AgentLogger.debug("Failed to apply canary to " + clsName + ": " + ex.getMessage());
+                        if ( ! classChanges.isEmpty() ) {
+                            changes.put(c, classChanges.toArray(new MethodChanges[]{}));
                         }
                     }
 
+                    if ( isCancelled() )
+                        return null;
+
+                    // the classes are compiled side by side and put in together
+                    prgCanary.setString("Instrumenting " + changes.size() + " classes...");
+
+                    List<Class> failed = manager.instrumentAll(changes);
+
+                    for (Class c : failed) {
+                        AgentLogger.debug("Failed to apply canary to " + c.getName());
+                    }
+
+                    clsCount = changes.size() - failed.size();
+
                     prgCanary.setValue(prgCanary.getMaximum());
 
                     finalMsg = "Successfully canaried " + clsCount + " classes and " + mtdCount + " methods.";
                     AgentLogger.info(finalMsg);
+                    AgentLogger.info("Class history: " + manager.getClassHistory());
 
                     return sb.toString();
                 }
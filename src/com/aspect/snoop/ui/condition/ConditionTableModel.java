@@ -21,6 +21,7 @@ package com.aspect.snoop.ui.condition;
 
 import com.aspect.snoop.JavaSnoop;
 import com.aspect.snoop.Condition;
+import com.aspect.snoop.agent.SnoopAgent;
 import com.aspect.snoop.util.ModelUIUtil;
 import com.aspect.snoop.util.UIUtil;
 import java.awt.event.ActionEvent;
@@ -86,6 +87,7 @@ public class ConditionTableModel extends AbstractTableModel {
         if ( columnIndex == 0 ) {
             boolean b = ((Boolean)o).booleanValue();
             conditions.get(rowIndex).setEnabled(b);
+            SnoopAgent.getMainView().conditionsChanged();
         }
     }
     
@@ -125,6 +127,7 @@ public class ConditionTableModel extends AbstractTableModel {
                             c2.setOperator(view.getOperator());
                             c2.setOperand(view.getOperand());
                             c2.setParameter(view.getParameter());
+                            SnoopAgent.getMainView().conditionsChanged();
                             mainFrame.repaint();
                         }
 
@@ -21,6 +21,7 @@ package com.aspect.snoop.ui.hook;
 
 import com.aspect.snoop.FunctionHook;
 import com.aspect.snoop.agent.SnoopAgent;
+import com.aspect.snoop.util.ModelUIUtil;
 import com.aspect.snoop.util.ReflectionUtil;
 import java.util.ArrayList;
 import java.util.List;
@@ -31,10 +32,14 @@ public class FunctionsHookedTableModel extends AbstractTableModel {
     private static String[] columnNames = {
         "Enabled",
         "Class/Method",
-        "Inheritable"
+        "Inheritable",
+        "Sampling",
+        "Wrap On Load"
     };
 
     private static Class[] columnTypes = {
+        Boolean.class,
+        String.class,
         Boolean.class,
         String.class,
         Boolean.class
@@ -74,8 +79,13 @@ public class FunctionsHookedTableModel extends AbstractTableModel {
 
     @Override
     public boolean isCellEditable(int rowIndex, int columnIndex) {
-        if ( columnIndex == 0 ) {
+        if ( columnIndex == 0 || columnIndex == 3 ) {
             return true;
+        } else if ( columnIndex == 4 ) {
+            // constructors can't be wrapped, super() has to come first. the
+            // setting's kept with the session, since a loaded class can't
+            // gain the wrapper until it's loaded again
+            return ! getHookFromRow(rowIndex).isConstructor();
         } else if ( columnIndex == 2 ) {
             FunctionHook hook = getHookFromRow(rowIndex);
             if ( ReflectionUtil.isInterfaceOrAbstract(hook.getClazz()) ) {
@@ -120,6 +130,12 @@ public class FunctionsHookedTableModel extends AbstractTableModel {
 
             case 2:
                 return hook.isAppliedToSubtypes();
+
+            case 3:
+                return ModelUIUtil.getSamplingDescription(hook);
+
+            case 4:
+                return hook.isWrapped();
                 
             default:
         }
@@ -137,8 +153,18 @@ public class FunctionsHookedTableModel extends AbstractTableModel {
         
         if ( columnIndex == 0 ) {
             hook.setEnabled(((Boolean)aValue).booleanValue());
+            SnoopAgent.getMainView().hookEnabledChanged(hook);
+            return;
         } else if ( columnIndex == 2 ) {
             hook.setApplyToSubtypes(((Boolean)aValue).booleanValue());
+        } else if ( columnIndex == 3 ) {
+            if ( ! ModelUIUtil.setSamplingFromDescription(hook, (String)aValue) ) {
+                return;
+            }
+        } else if ( columnIndex == 4 ) {
+            // nothing to send, the hooked class is already loaded
+            hook.setWrapped(((Boolean)aValue).booleanValue());
+            return;
         }
         SnoopAgent.getMainView().sendAgentNewRules();
     }
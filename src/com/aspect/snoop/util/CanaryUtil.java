@@ -20,36 +20,70 @@ package com.aspect.snoop.util;
 
 import com.aspect.snoop.agent.AgentLogger;
 import com.aspect.snoop.agent.SnoopAgent;
+import com.aspect.snoop.agent.manager.BytecodeChanges;
+import com.aspect.snoop.agent.manager.MethodDescriptor;
+import com.aspect.snoop.agent.manager.MethodRegistry;
+import javassist.CannotCompileException;
+import javassist.CtBehavior;
+import javassist.bytecode.Bytecode;
 
 public class CanaryUtil {
 
     public static String currentCanary = null;
 
-    public static String getChirp(String canaryType, String className, String methodName, String returnType) {
+    /**
+     * @param methodId the MethodRegistry id of the method being canaried
+     */
+    public static String getChirp(String canaryType, int methodId) {
 
         StringBuilder sb = new StringBuilder();
 
         String nl = System.getProperty("line.separator");
 
         sb.append("  com.aspect.snoop.util.CanaryUtil.canaryChirp(");
+        sb.append(methodId);
+        sb.append(", ");
         sb.append(canaryType);
-        sb.append(".class, ");
-        sb.append(className);
-        sb.append(".class, \"");
-        sb.append(methodName);
-        sb.append("\", $sig, $args);");
+        sb.append(".class, $args);");
         sb.append(nl);
 
         return sb.toString();
     }
 
-    public static void canaryChirp(Class canaryType, Class clazz, String methodName, Class[] types, Object[] objects) {
+    /**
+     * The same call as getChirp(), written into the method as bytecode.
+     * The canary type goes in by name, so the method's class doesn't need
+     * a class constant for it.
+     */
+    public static BytecodeChanges getChirpBytecode(String canaryType, int methodId) {
+        return new ChirpBytecode(canaryType, methodId);
+    }
+
+    public static void canaryChirp(int methodId, String canaryType, Object[] objects) {
+
+        MethodDescriptor method = MethodRegistry.get(methodId);
+
+        if ( method == null ) {
+            return;
+        }
+
+        for ( Class type : method.getParameterTypes() ) {
+            if ( type.getName().equals(canaryType) ) {
+                canaryChirp(methodId, type, objects);
+                return;
+            }
+        }
+    }
+
+    public static void canaryChirp(int methodId, Class canaryType, Object[] objects) {
+
+        MethodDescriptor method = MethodRegistry.get(methodId);
 
-        if ( ! canaryIsHeard(canaryType, types, objects)) {
+        if ( method == null || ! canaryIsHeard(canaryType, method.getParameterTypes(), objects)) {
             return;
         }
         try {
-            SnoopAgent.getMainView().getCanaryView().addChirp(clazz, clazz.getDeclaredMethod(methodName, types));
+            SnoopAgent.getMainView().getCanaryView().addChirp(method.getClazz(), method.getMethod());
         } catch (Exception ex) {
             AgentLogger.error("Problem receiving canary",ex);
         }
@@ -109,4 +143,33 @@ public class CanaryUtil {
         return false;
     }
 
+    private static class ChirpBytecode extends BytecodeChanges {
+
+        private final String canaryType;
+        private final int methodId;
+
+        ChirpBytecode(String canaryType, int methodId) {
+            this.canaryType = canaryType;
+            this.methodId = methodId;
+        }
+
+        public void apply(CtBehavior method) throws CannotCompileException {
+
+            Target target = new Target(method);
+            Bytecode b = target.newBytecode();
+
+            b.addIconst(methodId);
+            b.addLdc(canaryType);
+            target.pushArgs(b);
+            b.addInvokestatic("com.aspect.snoop.util.CanaryUtil", "canaryChirp", "(ILjava/lang/String;[Ljava/lang/Object;)V");
+
+            target.insertAtStart(b);
+            target.finish();
+        }
+
+        @Override
+        public String toString() {
+            return "chirp " + methodId + " " + canaryType;
+        }
+    }
 }
@@ -21,9 +21,146 @@ package com.aspect.snoop.util;
 
 import com.aspect.snoop.Condition;
 import com.aspect.snoop.Condition.Operator;
+import com.aspect.snoop.FunctionHook.Mode;
+import com.aspect.snoop.agent.AgentLogger;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ConditionUtil {
 
+    /**
+     * Turns a hook's mode and conditions into a single predicate. All the
+     * operand parsing and operator decisions happen here, once, so the
+     * predicate can be run on every invocation without doing any of it.
+     *
+     * @param mode the hook's interception mode
+     * @param conditions the hook's conditions (disabled ones are skipped)
+     * @param parameterTypes the declared parameter types of the hooked method
+     * @return a predicate that's true when the hook should fire
+     */
+    public static HookPredicate compile(Mode mode, List<Condition> conditions, Class[] parameterTypes) {
+
+        if ( mode == null || mode.equals(Mode.AlwaysIntercept) || conditions == null ) {
+            return HookPredicate.ALWAYS;
+        }
+
+        List<HookPredicate> tests = new ArrayList<HookPredicate>();
+
+        for (Condition c : conditions) {
+            if ( c.isEnabled() ) {
+                tests.add( compile(c, parameterTypes) );
+            }
+        }
+
+        if ( tests.isEmpty() ) {
+            return HookPredicate.ALWAYS;
+        }
+
+        HookPredicate[] compiled = tests.toArray(new HookPredicate[tests.size()]);
+
+        if ( mode.equals(Mode.InterceptIf) ) {
+            return new HookPredicate.AllOf(compiled);
+        }
+
+        return new HookPredicate.NoneOf(compiled);
+    }
+
+    public static HookPredicate compile(Condition c, Class[] parameterTypes) {
+
+        int parameter = c.getParameter();
+
+        if ( parameter < 0 || parameter >= parameterTypes.length || c.getOperator() == null || c.getOperand() == null ) {
+            return HookPredicate.NEVER;
+        }
+
+        Class type = ReflectionUtil.getWrapperType(parameterTypes[parameter]);
+
+        if ( isConditionType(type) ) {
+            return compile(c, parameter, type);
+        }
+
+        // we won't know the type until the call happens
+        return new HookPredicate.DynamicTest(
+                parameter,
+                compile(c, parameter, Integer.class),
+                compile(c, parameter, Short.class),
+                compile(c, parameter, Long.class),
+                compile(c, parameter, Byte.class),
+                compile(c, parameter, Double.class),
+                compile(c, parameter, Float.class),
+                compile(c, parameter, Character.class),
+                compile(c, parameter, Boolean.class),
+                compile(c, parameter, String.class));
+    }
+
+    private static HookPredicate compile(Condition c, int parameter, Class type) {
+
+        String operand = c.getOperand();
+        int operator = getOperatorCode(c.getOperator());
+
+        try {
+
+            if ( type.equals(String.class) ) {
+                if ( operator == HookPredicate.LESS_THAN || operator == HookPredicate.GREATER_THAN ) {
+                    return HookPredicate.NEVER;
+                }
+                return new HookPredicate.StringTest(parameter, operator, operand);
+            }
+
+            if ( type.equals(Boolean.class) ) {
+                if ( operator != HookPredicate.EQUAL ) {
+                    return HookPredicate.NEVER;
+                }
+                return new HookPredicate.BooleanTest(parameter, Boolean.parseBoolean(operand.trim()));
+            }
+
+            if ( operator != HookPredicate.EQUAL && operator != HookPredicate.LESS_THAN && operator != HookPredicate.GREATER_THAN ) {
+                return HookPredicate.NEVER;
+            }
+
+            if ( type.equals(Integer.class) ) {
+                return new HookPredicate.IntegralTest(parameter, operator, Integer.parseInt(operand));
+            } else if ( type.equals(Short.class) ) {
+                return new HookPredicate.IntegralTest(parameter, operator, Short.parseShort(operand));
+            } else if ( type.equals(Long.class) ) {
+                return new HookPredicate.IntegralTest(parameter, operator, Long.parseLong(operand));
+            } else if ( type.equals(Byte.class) ) {
+                return new HookPredicate.IntegralTest(parameter, operator, Byte.parseByte(operand));
+            } else if ( type.equals(Double.class) ) {
+                return new HookPredicate.FloatingTest(parameter, operator, Double.parseDouble(operand));
+            } else if ( type.equals(Float.class) ) {
+                return new HookPredicate.FloatingTest(parameter, operator, Float.parseFloat(operand));
+            } else if ( type.equals(Character.class) ) {
+                if ( operand.length() == 0 ) {
+                    return HookPredicate.NEVER;
+                }
+                return new HookPredicate.CharTest(parameter, operator, operand.charAt(0));
+            }
+
+        } catch (NumberFormatException nfe) {
+            AgentLogger.debug("Condition operand '" + operand + "' isn't a valid " + type.getSimpleName() + ", it will never match");
+        }
+
+        return HookPredicate.NEVER;
+    }
+
+    private static boolean isConditionType(Class type) {
+        return type.equals(String.class) || type.equals(Integer.class) || type.equals(Short.class)
+            || type.equals(Long.class) || type.equals(Byte.class) || type.equals(Double.class)
+            || type.equals(Float.class) || type.equals(Character.class) || type.equals(Boolean.class);
+    }
+
+    private static int getOperatorCode(Operator operator) {
+        switch (operator) {
+            case Equal: return HookPredicate.EQUAL;
+            case LessThan: return HookPredicate.LESS_THAN;
+            case GreaterThan: return HookPredicate.GREATER_THAN;
+            case Contains: return HookPredicate.CONTAINS;
+            case StartsWith: return HookPredicate.STARTS_WITH;
+            default: return HookPredicate.ENDS_WITH;
+        }
+    }
+
     public static boolean evaluate(Condition c, Object o) {
 
         if ( o instanceof Short ) {
@@ -19,107 +19,236 @@
 
 package com.aspect.snoop.util;
 
+import com.aspect.snoop.Condition;
+import com.aspect.snoop.Condition.Operator;
 import com.aspect.snoop.FunctionHook;
-import com.aspect.snoop.MethodWrapper;
+import com.aspect.snoop.FunctionHook.Mode;
 import com.aspect.snoop.agent.AgentLogger;
+import com.aspect.snoop.agent.manager.HookBytecode;
+import com.aspect.snoop.agent.manager.HookDispatcher;
+import com.aspect.snoop.agent.manager.HookRegistry;
 import com.aspect.snoop.agent.manager.InstrumentationManager;
 import com.aspect.snoop.agent.manager.LocalVariable;
 import com.aspect.snoop.agent.manager.MethodChanges;
+import com.aspect.snoop.agent.manager.MethodDescriptor;
+import com.aspect.snoop.agent.manager.MethodRegistry;
+import java.lang.reflect.AccessibleObject;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
-import javassist.ClassClassPath;
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.NotFoundException;
 
 public class Hook2JavaUtil {
 
-    public static MethodChanges hook2Java(FunctionHook hook, InstrumentationManager manager) {
+    /**
+     * Generates the code for every hook attached to one method. All of the
+     * hooks' actions go through a single HookDispatcher call on the way in,
+     * and a single call on the way out if any of them tampers with the
+     * return value.
+     *
+     * Which hooks fire is worked out first, in the injected code itself,
+     * from each hook's switch in the HookRegistry and then its inlined
+     * conditions and sampling. A disabled hook costs the one switch test,
+     * and enabling it again is just a flip of that switch. The result is kept
+     * in a bit mask (hook i is bit i) that's passed to the dispatcher, so it
+     * only runs the hooks that were picked, and the exit call uses the same
+     * decision as the entry. That makes HookDispatcher.MAX_HOOKS_PER_METHOD
+     * the most hooks a method can have; any after that are left out.
+     *
+     * @param clazz the class being instrumented
+     * @param method the hooked method (or constructor)
+     * @param hooks the hooks on the method, enabled or not, in the order they run
+     * @param manager decides whether the dispatch code is written as bytecode
+     */
+    public static MethodChanges hooks2Java(Class clazz, AccessibleObject method, List<FunctionHook> hooks, InstrumentationManager manager) {
+        int id = MethodRegistry.register(clazz, method);
+        return hooks2Java(id, new MethodChanges(method), hooks, manager != null && manager.isDirectBytecode());
+    }
+
+    /**
+     * Generates the code for a method that's already been registered, into
+     * the given (empty) changes. This is how classes that are instrumented
+     * as they load, before there's a Method to register, get their code.
+     *
+     * @param bytecode whether to write the dispatch code straight into the
+     *                 method as a HookBytecode, leaving only the hooks'
+     *                 scripts to be compiled from source
+     */
+    public static MethodChanges hooks2Java(int id, MethodChanges changes, List<FunctionHook> hooks, boolean bytecode) {
+
+        if ( hooks.size() > HookDispatcher.MAX_HOOKS_PER_METHOD ) {
+            MethodDescriptor descriptor = MethodRegistry.get(id);
+            String where = descriptor != null ? descriptor.getClassName() + "." + descriptor.getName() : "method #" + id;
+            AgentLogger.warn(where + " has " + hooks.size() + " hooks, only the first " + HookDispatcher.MAX_HOOKS_PER_METHOD + " will run");
+            hooks = hooks.subList(0, HookDispatcher.MAX_HOOKS_PER_METHOD);
+        }
 
-        StringBuilder javaCode = new StringBuilder();
         List<LocalVariable> vars = new ArrayList<LocalVariable>();
-        int id = hook.getId();
 
         String nl = System.getProperty("line.separator");
 
-        javaCode.append(nl);
+        int[] hookIds = new int[hooks.size()];
+        int entryMask = 0;
+        int exitMask = 0;
+        boolean tamperParameters = false;
+
+        StringBuilder select = new StringBuilder();
+
+        List<Integer> usedIds = new ArrayList<Integer>();
+        List<Integer> usedBits = new ArrayList<Integer>();
+        List<Integer> usedTests = new ArrayList<Integer>();
+
+        for (int i = 0; i < hookIds.length; i++) {
+
+            FunctionHook hook = hooks.get(i);
+            hookIds[i] = HookRegistry.getId(hook);
+
+            if ( hook.isWrapped() ) {
+                changes.setWrapped(true);
+            }
+
+            int bit = 1 << i;
+            boolean used = false;
+
+            if ( hook.shouldPrintParameters() || hook.shouldPrintStackTrace() || hook.shouldPause() || hook.shouldTamperParameters() ) {
+                entryMask |= bit;
+                used = true;
+            }
+
+            if ( hook.shouldTamperReturnValue() ) {
+                exitMask |= bit;
+                used = true;
+            }
+
+            if ( ! used ) {
+                continue;
+            }
 
-        if (hook.shouldPrintParameters()) {
-            javaCode.append("  com.aspect.snoop.agent.SnoopAgent.getMainView().printParameters(\"" + hook.getClazz().getName() + "\", " + id + ", $args, $sig);");
-            javaCode.append(nl);
+            tamperParameters |= hook.shouldTamperParameters();
+
+            usedIds.add(hookIds[i]);
+            usedBits.add(bit);
+
+            if ( hook.isSampled() ) {
+                usedTests.add(hasConditions(hook) ? HookBytecode.CONDITIONAL : HookBytecode.SAMPLED);
+            } else {
+                usedTests.add(HookBytecode.ALWAYS);
+            }
+
+            String test = getSwitch(hookIds[i]);
+            String fireTest = getFireTest(hook, hookIds[i]);
+
+            if ( fireTest != null ) {
+                test += " && (" + fireTest + ")";
+            }
+
+            select.append("  if ( " + test + " ) fired |= " + bit + ";");
+            select.append(nl);
         }
 
-        if (hook.shouldPrintStackTrace()) {
-            javaCode.append("  com.aspect.snoop.agent.SnoopAgent.getMainView().printStackTrace(\"" + hook.getClazz().getName() + "\", " + id + ", $args, $sig);");
-            javaCode.append(nl);
+        HookDispatcher.setHookIds(id, hookIds);
+
+        if ( bytecode ) {
+
+            changes.setBytecode(new HookBytecode(id, toArray(usedIds), toArray(usedBits), toArray(usedTests), entryMask, exitMask, tamperParameters));
+
+            StringBuilder startSrc = new StringBuilder();
+            StringBuilder endSrc = new StringBuilder();
+
+            appendScripts(hooks, hookIds, startSrc, endSrc, nl);
+
+            changes.initialize(new LocalVariable[0], startSrc.toString(), endSrc.toString());
+
+            AgentLogger.debug("BYTECODE: " + changes.getBytecode());
+            AgentLogger.debug("START: " + changes.getNewStartSrc());
+            AgentLogger.debug("END: " + changes.getNewEndSrc());
+
+            return changes;
         }
 
-        if (hook.shouldPause()) {
-            javaCode.append("  com.aspect.snoop.agent.SnoopAgent.getMainView().pause(\"" + hook.getClazz().getName() + "\", " + id + ", $args, $sig);");
-            javaCode.append(nl);
+        MethodDescriptor descriptor = MethodRegistry.get(id);
+        // only the names, the types may not be loadable yet
+        String[] parameterTypes = descriptor.getParameterTypeNames();
+
+        StringBuilder startSrc = new StringBuilder();
+        StringBuilder endSrc = new StringBuilder();
+
+        startSrc.append(nl);
+
+        if ( select.length() > 0 ) {
+            // need to add a new local variable "fired" so the exit code can see it too
+            vars.add(new LocalVariable("fired", CtClass.intType));
+            startSrc.append("  fired = 0;");
+            startSrc.append(nl);
+            startSrc.append(select);
         }
 
-        if (hook.shouldTamperParameters()) {
+        if ( entryMask != 0 ) {
 
-            try {
+            StringBuilder javaCode = new StringBuilder();
+            String call = "com.aspect.snoop.agent.manager.HookDispatcher.enter(" + id + ", fired, $args);";
 
-                // need to add a new local variable "mods" before this line will work
-                Object[] o = new Object[]{};
-                ClassPool cp = ClassPool.getDefault();
+            if ( tamperParameters && parameterTypes.length > 0 ) {
 
-                cp.appendClassPath( new ClassClassPath(o.getClass()) );
-                CtClass type = cp.get(o.getClass().getName());
+                try {
 
-                vars.add(new LocalVariable("mods", type));
+                    // need to add a new local variable "mods" before this line will work
+                    Object[] o = new Object[]{};
+                    CtClass type = ClassPool.getDefault().get(o.getClass().getName());
 
-                javaCode.append("  mods = com.aspect.snoop.agent.SnoopAgent.getMainView().tamperWithParameters(\"" + hook.getClazz().getName() + "\", " + id + ", $args, $sig);");
-                javaCode.append(nl);
+                    vars.add(new LocalVariable("mods", type));
 
-                int argLength = hook.getParameterTypes().length;
+                    javaCode.append("  mods = " + call);
+                    javaCode.append(nl);
+                    javaCode.append("  if ( mods != null ) {");
+                    javaCode.append(nl);
 
-                for (int i = 0; i < argLength; i++) {
+                    for (int i = 0; i < parameterTypes.length; i++) {
 
-                    String argType = hook.getParameterTypes()[i].getName();
-                    Unwrapper w = unwrappers.get(argType);
+                        String argType = parameterTypes[i];
+                        Unwrapper w = unwrappers.get(argType);
 
-                    if ( w == null ) {
-                        argType = getCastString(argType);
-                    }
+                        if ( w == null ) {
+                            argType = getCastString(argType);
+                        }
 
-                    String line;
+                        String line;
 
-                    if ( w == null ) {
-                        line = "  $" + (i + 1) + " = (" + argType + ")mods[" + i + "];";
-                    } else {
-                        line = "  $" + (i + 1) + " = " + w.prefix + "mods[" + i + "]"  + w.suffix + ";";
-                    }
+                        if ( w == null ) {
+                            line = "  $" + (i + 1) + " = (" + argType + ")mods[" + i + "];";
+                        } else {
+                            line = "  $" + (i + 1) + " = " + w.prefix + "mods[" + i + "]"  + w.suffix + ";";
+                        }
 
-                    line += nl;
+                        line += nl;
 
-                    javaCode.append(line);
+                        javaCode.append(line);
 
-                }
+                    }
 
-            } catch (NotFoundException ex) {
-                //logger.error(ex);
-            }
-        }
+                    javaCode.append("  }");
+                    javaCode.append(nl);
 
-        MethodWrapper method = MethodWrapper.getWrapper(hook.getClazz(), hook.getMethodName(), hook.getParameterTypes());
+                } catch (NotFoundException ex) {
+                    //logger.error(ex);
+                }
 
-        MethodChanges changes = new MethodChanges(method.getActualMethod());
-        changes.initialize(vars.toArray(new LocalVariable[vars.size()]), javaCode.toString(), "");
+            } else {
+                javaCode.append("  " + call);
+                javaCode.append(nl);
+            }
 
-        if (hook.shouldRunScript()) {
-            changes.setNewStartSrc( changes.getNewStartSrc() + hook.getStartScript());
-            changes.setNewEndSrc( changes.getNewEndSrc() + hook.getEndScript());
+            startSrc.append( guard(javaCode.toString(), entryMask, nl) );
         }
 
-        if ( hook.shouldTamperReturnValue() ) {
+        appendScripts(hooks, hookIds, startSrc, endSrc, nl);
+
+        if ( exitMask != 0 ) {
 
-            String returnType = hook.getReturnType().getName();
+            String returnType = descriptor.getReturnTypeName();
 
             Unwrapper w = unwrappers.get(returnType);
 
@@ -130,20 +259,249 @@ public class Hook2JavaUtil {
             String line = null;
 
             if ( w == null ) {
-               line = "  $_ = (" + returnType + ")com.aspect.snoop.agent.SnoopAgent.getMainView().tamperWithReturnValue(\"" + hook.getClazz().getName() + "\", " + id + ", $args, $sig, $_, $type);";
+               line = "  $_ = (" + returnType + ")com.aspect.snoop.agent.manager.HookDispatcher.exit(" + id + ", fired, $args, $_);";
             } else {
-               line = "  $_ = " + w.prefix + "com.aspect.snoop.agent.SnoopAgent.getMainView().tamperWithReturnValue(\"" + hook.getClazz().getName() + "\", " + id + ", $args, $sig, com.aspect.snoop.util.ReflectionUtil.getObjectFrom($_), $type)" + w.suffix + ";";
+               line = "  $_ = " + w.prefix + "com.aspect.snoop.agent.manager.HookDispatcher.exit(" + id + ", fired, $args, com.aspect.snoop.util.ReflectionUtil.getObjectFrom($_))" + w.suffix + ";";
             }
 
-            changes.setNewEndSrc( changes.getNewEndSrc() + nl + line );
+            endSrc.append(nl);
+            endSrc.append( guard(line + nl, exitMask, nl) );
         }
 
+        changes.initialize(vars.toArray(new LocalVariable[vars.size()]), startSrc.toString(), endSrc.toString());
+
         AgentLogger.debug("START: " + changes.getNewStartSrc());
         AgentLogger.debug("END: " + changes.getNewEndSrc());
 
         return changes;
     }
 
+    /*
+     * The user's scripts, each behind its hook's switch. These are always
+     * compiled from source.
+     */
+    private static void appendScripts(List<FunctionHook> hooks, int[] hookIds, StringBuilder startSrc, StringBuilder endSrc, String nl) {
+
+        for (int i = 0; i < hookIds.length; i++) {
+            FunctionHook hook = hooks.get(i);
+            if (hook.shouldRunScript()) {
+                String test = "  if ( " + getSwitch(hookIds[i]) + " ) ";
+                startSrc.append(test + "{" + nl + hook.getStartScript() + nl + "  }" + nl);
+                endSrc.append(test + "{" + nl + hook.getEndScript() + nl + "  }" + nl);
+            }
+        }
+    }
+
+    private static int[] toArray(List<Integer> l) {
+        int[] a = new int[l.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = l.get(i);
+        }
+        return a;
+    }
+
+    /*
+     * Only call into the dispatcher if one of the hooks it would run was
+     * picked, so calls that don't match (or aren't sampled) never build
+     * $args.
+     */
+    private static String guard(String javaCode, int mask, String nl) {
+        return "  if ( (fired & " + mask + ") != 0 ) {" + nl + javaCode + "  }" + nl;
+    }
+
+    private static String getSwitch(int hookId) {
+        return "com.aspect.snoop.agent.manager.HookRegistry.isEnabled(" + hookId + ")";
+    }
+
+    /*
+     * The test for whether an enabled hook fires on this call, or null if
+     * it fires on every call.
+     */
+    private static String getFireTest(FunctionHook hook, int hookId) {
+
+        String guard = getConditionGuard(hook);
+
+        if ( ! hook.isSampled() ) {
+            return guard;
+        }
+
+        if ( guard == null && hasConditions(hook) ) {
+            // the conditions have to be checked before a sample is used up
+            return "com.aspect.snoop.agent.manager.HookSampler.sample(" + hookId + ", $args)";
+        }
+
+        String sample = "com.aspect.snoop.agent.manager.HookSampler.sample(" + hookId + ")";
+
+        return guard == null ? sample : "(" + guard + ") && " + sample;
+    }
+
+    private static boolean hasConditions(FunctionHook hook) {
+
+        if ( hook.getMode() == null || hook.getMode().equals(Mode.AlwaysIntercept) || hook.getConditions() == null ) {
+            return false;
+        }
+
+        for ( Condition c : hook.getConditions() ) {
+            if ( c.isEnabled() ) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Builds a Java expression over $1..$n that's true when the hook's
+     * conditions are met, so it can be compiled straight into the hooked
+     * method.
+     *
+     * @return the expression, or null if the hook always fires or if any of
+     *         its conditions test something other than a primitive or String
+     *         parameter (in which case the check is left to the GUI side)
+     */
+    public static String getConditionGuard(FunctionHook hook) {
+
+        Mode mode = hook.getMode();
+
+        if ( mode == null || mode.equals(Mode.AlwaysIntercept) || hook.getConditions() == null ) {
+            return null;
+        }
+
+        boolean interceptIf = mode.equals(Mode.InterceptIf);
+        StringBuilder guard = new StringBuilder();
+
+        for ( Condition c : hook.getConditions() ) {
+
+            if ( ! c.isEnabled() ) {
+                continue;
+            }
+
+            String test = getConditionTest(c, hook.getParameterTypes());
+
+            if ( test == null ) {
+                return null;
+            }
+
+            if ( guard.length() > 0 ) {
+                guard.append(interceptIf ? " && " : " || ");
+            }
+
+            guard.append("(").append(test).append(")");
+        }
+
+        if ( guard.length() == 0 ) {
+            return null;
+        }
+
+        return interceptIf ? guard.toString() : "!(" + guard + ")";
+    }
+
+    /*
+     * Mirrors what ConditionUtil.compile() does for a single condition, but
+     * produces source instead of a predicate object.
+     */
+    private static String getConditionTest(Condition c, Class[] parameterTypes) {
+
+        int parameter = c.getParameter();
+        Operator operator = c.getOperator();
+        String operand = c.getOperand();
+
+        if ( parameter < 0 || parameter >= parameterTypes.length || operator == null || operand == null ) {
+            return "false";
+        }
+
+        Class type = parameterTypes[parameter];
+        String arg = "$" + (parameter + 1);
+
+        if ( type.equals(String.class) ) {
+
+            String literal = toStringLiteral(operand);
+
+            switch (operator) {
+                case Equal: return arg + " != null && " + arg + ".equals(" + literal + ")";
+                case Contains: return arg + " != null && " + arg + ".indexOf(" + literal + ") != -1";
+                case StartsWith: return arg + " != null && " + arg + ".startsWith(" + literal + ")";
+                case EndsWith: return arg + " != null && " + arg + ".endsWith(" + literal + ")";
+                default: return "false";
+            }
+        }
+
+        if ( ! type.isPrimitive() ) {
+            return null;
+        }
+
+        if ( type.equals(boolean.class) ) {
+            if ( ! operator.equals(Operator.Equal) ) {
+                return "false";
+            }
+            return Boolean.parseBoolean(operand.trim()) ? arg : "!" + arg;
+        }
+
+        String op;
+
+        switch (operator) {
+            case Equal: op = " == "; break;
+            case LessThan: op = " < "; break;
+            case GreaterThan: op = " > "; break;
+            default: return "false";
+        }
+
+        try {
+
+            if ( type.equals(int.class) ) {
+                return arg + op + "(" + Integer.parseInt(operand) + ")";
+            } else if ( type.equals(short.class) ) {
+                return arg + op + "(" + Short.parseShort(operand) + ")";
+            } else if ( type.equals(byte.class) ) {
+                return arg + op + "(" + Byte.parseByte(operand) + ")";
+            } else if ( type.equals(long.class) ) {
+                return arg + op + "(" + Long.parseLong(operand) + "L)";
+            } else if ( type.equals(char.class) ) {
+                if ( operand.length() == 0 ) {
+                    return "false";
+                }
+                return arg + op + (int)operand.charAt(0);
+            } else if ( type.equals(double.class) ) {
+                // compare the exact bits so NaN and -0.0 act like Double.compareTo()
+                long bits = Double.doubleToLongBits(Double.parseDouble(operand));
+                return "java.lang.Double.compare(" + arg + ", java.lang.Double.longBitsToDouble(" + bits + "L))" + op + "0";
+            } else if ( type.equals(float.class) ) {
+                int bits = Float.floatToIntBits(Float.parseFloat(operand));
+                return "java.lang.Float.compare(" + arg + ", java.lang.Float.intBitsToFloat(" + bits + "))" + op + "0";
+            }
+
+        } catch (NumberFormatException nfe) {
+            return "false";
+        }
+
+        return null;
+    }
+
+    /*
+     * Javassist's compiler only understands the simple escapes, so anything
+     * else is passed through as the raw character.
+     */
+    private static String toStringLiteral(String s) {
+
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default: sb.append(ch);
+            }
+        }
+
+        sb.append('"');
+        return sb.toString();
+    }
+
     public static String getCastString(String argType) {
         
         String toReturn = argType;
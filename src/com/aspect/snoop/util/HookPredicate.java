@@ -0,0 +1,286 @@
+/*
+ * Copyright, Aspect Security, Inc.
+ *
+ * This file is part of JavaSnoop.
+ *
+ * JavaSnoop is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JavaSnoop is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JavaSnoop.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aspect.snoop.util;
+
+/**
+ * A hook's mode and conditions, compiled down to something that can be
+ * checked against the parameters of an invocation without any parsing or
+ * operator lookups. These are built by ConditionUtil.compile() when a hook
+ * is installed.
+ */
+public abstract class HookPredicate {
+
+    static final int EQUAL = 0;
+    static final int LESS_THAN = 1;
+    static final int GREATER_THAN = 2;
+    static final int CONTAINS = 3;
+    static final int STARTS_WITH = 4;
+    static final int ENDS_WITH = 5;
+
+    public static final HookPredicate ALWAYS = new Constant(true);
+    public static final HookPredicate NEVER = new Constant(false);
+
+    public abstract boolean matches(Object[] parameters);
+
+    static final class Constant extends HookPredicate {
+
+        private final boolean value;
+
+        Constant(boolean value) {
+            this.value = value;
+        }
+
+        public boolean matches(Object[] parameters) {
+            return value;
+        }
+    }
+
+    /**
+     * InterceptIf - every enabled condition has to be true.
+     */
+    static final class AllOf extends HookPredicate {
+
+        private final HookPredicate[] tests;
+
+        AllOf(HookPredicate[] tests) {
+            this.tests = tests;
+        }
+
+        public boolean matches(Object[] parameters) {
+            for (int i = 0; i < tests.length; i++) {
+                if ( ! tests[i].matches(parameters) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * DontInterceptIf - every enabled condition has to be false.
+     */
+    static final class NoneOf extends HookPredicate {
+
+        private final HookPredicate[] tests;
+
+        NoneOf(HookPredicate[] tests) {
+            this.tests = tests;
+        }
+
+        public boolean matches(Object[] parameters) {
+            for (int i = 0; i < tests.length; i++) {
+                if ( tests[i].matches(parameters) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * byte, short, int and long parameters, all compared as longs.
+     */
+    static final class IntegralTest extends HookPredicate {
+
+        private final int parameter;
+        private final int operator;
+        private final long operand;
+
+        IntegralTest(int parameter, int operator, long operand) {
+            this.parameter = parameter;
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        public boolean matches(Object[] parameters) {
+            Object o = parameters[parameter];
+            if ( ! (o instanceof Number) ) {
+                return false;
+            }
+            long value = ((Number)o).longValue();
+            switch (operator) {
+                case EQUAL: return value == operand;
+                case LESS_THAN: return value < operand;
+                case GREATER_THAN: return value > operand;
+                default: return false;
+            }
+        }
+    }
+
+    /**
+     * float and double parameters. Uses Double.compare() so NaN and -0.0
+     * behave the way they do with Float/Double.equals() and compareTo().
+     */
+    static final class FloatingTest extends HookPredicate {
+
+        private final int parameter;
+        private final int operator;
+        private final double operand;
+
+        FloatingTest(int parameter, int operator, double operand) {
+            this.parameter = parameter;
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        public boolean matches(Object[] parameters) {
+            Object o = parameters[parameter];
+            if ( ! (o instanceof Number) ) {
+                return false;
+            }
+            int rc = Double.compare(((Number)o).doubleValue(), operand);
+            switch (operator) {
+                case EQUAL: return rc == 0;
+                case LESS_THAN: return rc < 0;
+                case GREATER_THAN: return rc > 0;
+                default: return false;
+            }
+        }
+    }
+
+    static final class CharTest extends HookPredicate {
+
+        private final int parameter;
+        private final int operator;
+        private final char operand;
+
+        CharTest(int parameter, int operator, char operand) {
+            this.parameter = parameter;
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        public boolean matches(Object[] parameters) {
+            Object o = parameters[parameter];
+            if ( ! (o instanceof Character) ) {
+                return false;
+            }
+            char value = ((Character)o).charValue();
+            switch (operator) {
+                case EQUAL: return value == operand;
+                case LESS_THAN: return value < operand;
+                case GREATER_THAN: return value > operand;
+                default: return false;
+            }
+        }
+    }
+
+    static final class BooleanTest extends HookPredicate {
+
+        private final int parameter;
+        private final Boolean operand;
+
+        BooleanTest(int parameter, boolean operand) {
+            this.parameter = parameter;
+            this.operand = Boolean.valueOf(operand);
+        }
+
+        public boolean matches(Object[] parameters) {
+            return operand.equals(parameters[parameter]);
+        }
+    }
+
+    static final class StringTest extends HookPredicate {
+
+        private final int parameter;
+        private final int operator;
+        private final String operand;
+
+        StringTest(int parameter, int operator, String operand) {
+            this.parameter = parameter;
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        public boolean matches(Object[] parameters) {
+            Object o = parameters[parameter];
+            if ( ! (o instanceof String) ) {
+                return false;
+            }
+            String value = (String)o;
+            switch (operator) {
+                case EQUAL: return value.equals(operand);
+                case CONTAINS: return value.contains(operand);
+                case STARTS_WITH: return value.startsWith(operand);
+                case ENDS_WITH: return value.endsWith(operand);
+                default: return false;
+            }
+        }
+    }
+
+    /**
+     * For parameters declared as Object, Number, etc. where we don't know
+     * what we'll get until the call happens. The operand is parsed up front
+     * for every type it could be compared against, so the only work left
+     * at call time is finding out which one the value is.
+     */
+    static final class DynamicTest extends HookPredicate {
+
+        private final int parameter;
+        private final HookPredicate integerTest;
+        private final HookPredicate shortTest;
+        private final HookPredicate longTest;
+        private final HookPredicate byteTest;
+        private final HookPredicate doubleTest;
+        private final HookPredicate floatTest;
+        private final HookPredicate charTest;
+        private final HookPredicate booleanTest;
+        private final HookPredicate stringTest;
+
+        DynamicTest(int parameter, HookPredicate integerTest, HookPredicate shortTest, HookPredicate longTest,
+                HookPredicate byteTest, HookPredicate doubleTest, HookPredicate floatTest,
+                HookPredicate charTest, HookPredicate booleanTest, HookPredicate stringTest) {
+            this.parameter = parameter;
+            this.integerTest = integerTest;
+            this.shortTest = shortTest;
+            this.longTest = longTest;
+            this.byteTest = byteTest;
+            this.doubleTest = doubleTest;
+            this.floatTest = floatTest;
+            this.charTest = charTest;
+            this.booleanTest = booleanTest;
+            this.stringTest = stringTest;
+        }
+
+        public boolean matches(Object[] parameters) {
+            Object o = parameters[parameter];
+            if ( o instanceof String ) {
+                return stringTest.matches(parameters);
+            } else if ( o instanceof Integer ) {
+                return integerTest.matches(parameters);
+            } else if ( o instanceof Long ) {
+                return longTest.matches(parameters);
+            } else if ( o instanceof Short ) {
+                return shortTest.matches(parameters);
+            } else if ( o instanceof Byte ) {
+                return byteTest.matches(parameters);
+            } else if ( o instanceof Double ) {
+                return doubleTest.matches(parameters);
+            } else if ( o instanceof Float ) {
+                return floatTest.matches(parameters);
+            } else if ( o instanceof Character ) {
+                return charTest.matches(parameters);
+            } else if ( o instanceof Boolean ) {
+                return booleanTest.matches(parameters);
+            }
+            return false; // not a primitive - we can only work with primitives
+        }
+    }
+}
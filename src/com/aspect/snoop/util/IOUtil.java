@@ -22,6 +22,7 @@ package com.aspect.snoop.util;
 
 
 import com.aspect.snoop.agent.AgentLogger;
+import com.aspect.snoop.agent.SnoopAgent;
 import java.nio.channels.*;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -32,9 +33,6 @@ import java.io.InputStream;
 import java.net.URL;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.NotFoundException;
 
 public class IOUtil {
 
@@ -111,8 +109,7 @@ public class IOUtil {
     public static byte[] getClassBytes(Class clazz) {
 
         try {
-            CtClass ct = ClassPool.getDefault().get(clazz.getName());
-            return ct.toBytecode();
+            return SnoopAgent.getAgentManager().getClassBytes(clazz);
         } catch (Exception ex) {
             AgentLogger.error(ex);
         }
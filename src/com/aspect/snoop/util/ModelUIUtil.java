@@ -20,7 +20,11 @@
 package com.aspect.snoop.util;
 
 import com.aspect.snoop.Condition.Operator;
+import com.aspect.snoop.FunctionHook;
+import com.aspect.snoop.FunctionHook.Sampling;
 import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ModelUIUtil {
 
@@ -54,4 +58,79 @@ public class ModelUIUtil {
         return descriptionMap.get(operator);
     }
 
+    public static final String[] samplingChoices = {
+        "All calls",
+        "1 in 10",
+        "1 in 100",
+        "1 in 1000",
+        "10 per second",
+        "100 per second",
+        "First 10",
+        "First 100"
+    };
+
+    private static final Pattern oneInN = Pattern.compile("1\\s*in\\s*(\\d+)");
+    private static final Pattern rateLimit = Pattern.compile("(\\d+)\\s*(per\\s*second|per\\s*sec|/\\s*s|/\\s*sec)");
+    private static final Pattern firstN = Pattern.compile("first\\s*(\\d+)");
+
+    public static String getSamplingDescription(FunctionHook hook) {
+
+        if ( ! hook.isSampled() ) {
+            return samplingChoices[0];
+        }
+
+        int n = hook.getSamplingValue();
+
+        switch (hook.getSampling()) {
+            case OneInN: return "1 in " + n;
+            case RateLimit: return n + " per second";
+            case FirstN: return "First " + n;
+            default: return samplingChoices[0];
+        }
+    }
+
+    /**
+     * Sets the hook's sampling from a description like "1 in 100",
+     * "50 per second" or "first 10".
+     * @return false if the description didn't make sense, in which case the
+     *         hook is left alone
+     */
+    public static boolean setSamplingFromDescription(FunctionHook hook, String description) {
+
+        String s = description == null ? "" : description.trim().toLowerCase();
+
+        Sampling sampling = null;
+        Matcher m;
+
+        if ( s.length() == 0 || s.startsWith("all") ) {
+            hook.setSampling(Sampling.None);
+            hook.setSamplingValue(0);
+            return true;
+        } else if ( (m = oneInN.matcher(s)).matches() ) {
+            sampling = Sampling.OneInN;
+        } else if ( (m = rateLimit.matcher(s)).matches() ) {
+            sampling = Sampling.RateLimit;
+        } else if ( (m = firstN.matcher(s)).matches() ) {
+            sampling = Sampling.FirstN;
+        } else {
+            return false;
+        }
+
+        int n;
+
+        try {
+            n = Integer.parseInt(m.group(1));
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+
+        if ( n <= 0 ) {
+            return false;
+        }
+
+        hook.setSampling(sampling);
+        hook.setSamplingValue(n);
+        return true;
+    }
+
 }
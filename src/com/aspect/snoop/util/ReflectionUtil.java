@@ -514,6 +514,29 @@ public class ReflectionUtil {
 
     }
 
+    public static Class getWrapperType(Class c) {
+        if ( ! c.isPrimitive() ) {
+            return c;
+        } else if ( c.equals(boolean.class) ) {
+            return Boolean.class;
+        } else if ( c.equals(byte.class) ) {
+            return Byte.class;
+        } else if ( c.equals(char.class) ) {
+            return Character.class;
+        } else if ( c.equals(short.class) ) {
+            return Short.class;
+        } else if ( c.equals(int.class) ) {
+            return Integer.class;
+        } else if ( c.equals(long.class) ) {
+            return Long.class;
+        } else if ( c.equals(double.class) ) {
+            return Double.class;
+        } else if ( c.equals(float.class) ) {
+            return Float.class;
+        }
+        return Void.class;
+    }
+
     public static Object getObjectFrom(Object o) {
         return o;
     }
@@ -20,8 +20,10 @@
 package com.aspect.snoop.util;
 
 import com.aspect.snoop.Condition;
+import com.aspect.snoop.DeferredHook;
 import com.aspect.snoop.FunctionHook;
 import com.aspect.snoop.SnoopSession;
+import com.aspect.snoop.agent.AgentLogger;
 import com.aspect.snoop.agent.SnoopAgent;
 import java.io.File;
 import java.io.FileInputStream;
@@ -59,6 +61,7 @@ public class SessionPersistenceUtil {
         sessionRoot.addAttribute( new Attribute ("progArgs", session.getArguments()) );
         sessionRoot.addAttribute( new Attribute ("classpath", session.getClasspathString()) );
         sessionRoot.addAttribute( new Attribute ("workingDir", session.getWorkingDir()) );
+        sessionRoot.addAttribute( new Attribute ("directBytecode", String.valueOf(session.isDirectBytecode())) );
         
         // Add a <hooks> node
 
@@ -67,53 +70,14 @@ public class SessionPersistenceUtil {
         // Add all the children <hook> elements
 
         for(FunctionHook hook : session.getFunctionHooks() ) {
-
-            Element hookRoot = new Element("hook");
-
-            hookRoot.addAttribute ( new Attribute("enabled", Boolean.toString(hook.isEnabled()) ));
-            hookRoot.addAttribute ( new Attribute("class", hook.getClazz().getName()) );
-            hookRoot.addAttribute ( new Attribute("method", hook.getMethodName() ));
-
-            hookRoot.addAttribute ( new Attribute("shouldInherit", Boolean.toString(hook.isAppliedToSubtypes())));
-
             String allParamTypes = StringUtil.join(hook.getParameterTypes(), ",");
+            hooksRoot.appendChild( getHookElement(hook, hook.getClazz().getName(), allParamTypes, hook.getReturnType().getName()) );
+        }
 
-            hookRoot.addAttribute ( new Attribute("params", allParamTypes ) );
-            hookRoot.addAttribute ( new Attribute("returnType", hook.getReturnType().getName()));
-            
-            hookRoot.addAttribute ( new Attribute("shouldTamperParameters", Boolean.toString(hook.shouldTamperParameters())));
-            hookRoot.addAttribute ( new Attribute("shouldTamperReturnValue", Boolean.toString(hook.shouldTamperReturnValue())));
-
-            hookRoot.addAttribute ( new Attribute("shouldRunScript", Boolean.toString(hook.shouldRunScript())));
-            hookRoot.addAttribute ( new Attribute("startScript", hook.getStartScript()) );
-            hookRoot.addAttribute ( new Attribute("endScript", hook.getEndScript()) );
-
-            hookRoot.addAttribute ( new Attribute("shouldPause", Boolean.toString(hook.shouldPause())) );
-
-            hookRoot.addAttribute( new Attribute("shouldPrintParameters", Boolean.toString(hook.shouldPrintParameters())) );
-            hookRoot.addAttribute( new Attribute("shouldPrintStackTrace", Boolean.toString(hook.shouldPrintStackTrace())) );
-            
-            hookRoot.addAttribute( new Attribute("outputToConsole", Boolean.toString(hook.isOutputToConsole())) );
-            hookRoot.addAttribute( new Attribute("outputToFile", Boolean.toString(hook.isOutputToFile())) );
-            hookRoot.addAttribute( new Attribute("outputFile", hook.getOutputFile()));
-
-            hookRoot.addAttribute( new Attribute("interceptCondition", hook.getMode().name() ) );
-            
-            // Add a <conditions> node
-            Element conditionsRoot = new Element("conditions");
-
-            for(Condition c : hook.getConditions() ) {
-                Element condition = new Element("condition");
-                condition.addAttribute( new Attribute ("enabled", Boolean.toString(c.isEnabled()) ) );
-                condition.addAttribute( new Attribute ("parameter", String.valueOf(c.getParameter()) ) );
-                condition.addAttribute( new Attribute ("operator", c.getOperator().name()));
-                condition.addAttribute( new Attribute ("operand", c.getOperand()));
-                
-                conditionsRoot.appendChild(condition);
-            }
-
-            hookRoot.appendChild(conditionsRoot);
-            hooksRoot.appendChild(hookRoot);
+        // hooks on classes that never showed up are kept as they were
+        for(DeferredHook deferred : session.getDeferredHooks() ) {
+            String allParamTypes = StringUtil.join(deferred.getParameterTypeNames(), ",");
+            hooksRoot.appendChild( getHookElement(deferred.getHook(), deferred.getClassName(), allParamTypes, deferred.getReturnTypeName()) );
         }
 
         sessionRoot.appendChild(hooksRoot);
@@ -135,6 +99,60 @@ public class SessionPersistenceUtil {
         session.markAsSaved();
     }
 
+    private static Element getHookElement(FunctionHook hook, String className, String allParamTypes, String returnType) {
+
+        Element hookRoot = new Element("hook");
+
+        hookRoot.addAttribute ( new Attribute("enabled", Boolean.toString(hook.isEnabled()) ));
+        hookRoot.addAttribute ( new Attribute("class", className) );
+        hookRoot.addAttribute ( new Attribute("method", hook.getMethodName() ));
+
+        hookRoot.addAttribute ( new Attribute("shouldInherit", Boolean.toString(hook.isAppliedToSubtypes())));
+
+        hookRoot.addAttribute ( new Attribute("params", allParamTypes ) );
+        hookRoot.addAttribute ( new Attribute("returnType", returnType));
+        
+        hookRoot.addAttribute ( new Attribute("shouldTamperParameters", Boolean.toString(hook.shouldTamperParameters())));
+        hookRoot.addAttribute ( new Attribute("shouldTamperReturnValue", Boolean.toString(hook.shouldTamperReturnValue())));
+
+        hookRoot.addAttribute ( new Attribute("shouldRunScript", Boolean.toString(hook.shouldRunScript())));
+        hookRoot.addAttribute ( new Attribute("startScript", hook.getStartScript()) );
+        hookRoot.addAttribute ( new Attribute("endScript", hook.getEndScript()) );
+
+        hookRoot.addAttribute ( new Attribute("shouldPause", Boolean.toString(hook.shouldPause())) );
+
+        hookRoot.addAttribute( new Attribute("shouldPrintParameters", Boolean.toString(hook.shouldPrintParameters())) );
+        hookRoot.addAttribute( new Attribute("shouldPrintStackTrace", Boolean.toString(hook.shouldPrintStackTrace())) );
+        
+        hookRoot.addAttribute( new Attribute("outputToConsole", Boolean.toString(hook.isOutputToConsole())) );
+        hookRoot.addAttribute( new Attribute("outputToFile", Boolean.toString(hook.isOutputToFile())) );
+        hookRoot.addAttribute( new Attribute("outputFile", hook.getOutputFile()));
+
+        hookRoot.addAttribute( new Attribute("interceptCondition", hook.getMode().name() ) );
+
+        hookRoot.addAttribute( new Attribute("sampling", hook.getSampling().name() ) );
+        hookRoot.addAttribute( new Attribute("samplingValue", String.valueOf(hook.getSamplingValue()) ) );
+
+        hookRoot.addAttribute( new Attribute("wrapped", Boolean.toString(hook.isWrapped())) );
+        
+        // Add a <conditions> node
+        Element conditionsRoot = new Element("conditions");
+
+        for(Condition c : hook.getConditions() ) {
+            Element condition = new Element("condition");
+            condition.addAttribute( new Attribute ("enabled", Boolean.toString(c.isEnabled()) ) );
+            condition.addAttribute( new Attribute ("parameter", String.valueOf(c.getParameter()) ) );
+            condition.addAttribute( new Attribute ("operator", c.getOperator().name()));
+            condition.addAttribute( new Attribute ("operand", c.getOperand()));
+            
+            conditionsRoot.appendChild(condition);
+        }
+
+        hookRoot.appendChild(conditionsRoot);
+
+        return hookRoot;
+    }
+
     public static SnoopSession loadSession(String filename) throws FileNotFoundException, IOException {
     	return loadSession(new File(filename));
     }
@@ -187,8 +205,10 @@ public class SessionPersistenceUtil {
         session.setArguments(root.getAttributeValue("progArgs"));
         session.setClasspathString(root.getAttributeValue("classpath"));
         session.setWorkingDir(root.getAttributeValue("workingDir"));
+        session.setDirectBytecode("true".equals(root.getAttributeValue("directBytecode")));
 
         List<FunctionHook> hooks = new ArrayList<FunctionHook>();
+        List<DeferredHook> deferred = new ArrayList<DeferredHook>();
 
         Element hooksRoot = root.getFirstChildElement("hooks");
 
@@ -207,6 +227,21 @@ public class SessionPersistenceUtil {
 
             FunctionHook.Mode mode = FunctionHook.Mode.valueOf(interceptCondition);
 
+            // sessions saved before sampling existed don't have these
+            FunctionHook.Sampling sampling = FunctionHook.Sampling.None;
+            int samplingValue = 0;
+
+            try {
+                String s = hookRoot.getAttributeValue("sampling");
+                if ( s != null ) {
+                    sampling = FunctionHook.Sampling.valueOf(s);
+                    samplingValue = Integer.parseInt(hookRoot.getAttributeValue("samplingValue"));
+                }
+            } catch (Exception e) {
+                sampling = FunctionHook.Sampling.None;
+                samplingValue = 0;
+            }
+
             boolean shouldTamperParameters = "true".equals(hookRoot.getAttributeValue("shouldTamperParameters"));
             boolean shouldTamperReturnValue = "true".equals(hookRoot.getAttributeValue("shouldTamperReturnValue"));
 
@@ -243,49 +278,56 @@ public class SessionPersistenceUtil {
                 conditions.add(c);
             }
 
+            String[] sParamType = params.trim().length() == 0 ? new String[0] : params.split(",");
+
+            FunctionHook hook = new FunctionHook(
+                    shouldTamperParameters,
+                    shouldTamperReturnValue,
+                    shouldRunScript,
+                    startScript,
+                    endScript,
+                    shouldPause,
+                    enabled,
+                    null,
+                    method,
+                    null,
+                    null,
+                    applyToSubTypes,
+                    mode,
+                    printParameters,
+                    printStackTrace,
+                    isOutputToConsole,
+                    isOutputToFile,
+                    outputFile,
+                    conditions);
+
+            hook.setSampling(sampling);
+            hook.setSamplingValue(samplingValue);
+            hook.setWrapped("true".equals(hookRoot.getAttributeValue("wrapped")));
+
             try {
                 Class realClass = SnoopAgent.getAgentManager().getFromAllClasses(clazz);
-                Class realReturnClass = getClazzFor(returnType);
-                Class[] realParams = null;
-                if ( params.trim().length() == 0 ) {
-                    realParams = new Class[]{};
-                } else {
-                    String[] sParamType = params.split(",");
-                    realParams = new Class[sParamType.length];
-                    for(int j=0;j<realParams.length;j++) {
-                        realParams[j] = getClazzFor(sParamType[j]);
-                    }
-
+                ClassLoader loader = realClass.getClassLoader();
+                Class realReturnClass = getClazzFor(returnType, loader);
+                Class[] realParams = new Class[sParamType.length];
+                for(int j=0;j<realParams.length;j++) {
+                    realParams[j] = getClazzFor(sParamType[j], loader);
                 }
 
-                FunctionHook hook = new FunctionHook(
-                        shouldTamperParameters,
-                        shouldTamperReturnValue,
-                        shouldRunScript,
-                        startScript,
-                        endScript,
-                        shouldPause,
-                        enabled,
-                        realClass,
-                        method,
-                        realParams,
-                        realReturnClass,
-                        applyToSubTypes,
-                        mode,
-                        printParameters,
-                        printStackTrace,
-                        isOutputToConsole,
-                        isOutputToFile,
-                        outputFile,
-                        conditions);
-
-                 hooks.add(hook);
+                hook.setClazz(realClass);
+                hook.setParameterTypes(realParams);
+                hook.setReturnType(realReturnClass);
+
+                hooks.add(hook);
             } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+                // hang on to it until the class is loaded
+                AgentLogger.info("Deferring hook on " + clazz + "." + method + " until the class is loaded");
+                deferred.add( new DeferredHook(clazz, sParamType, returnType, hook) );
             }
         }
 
         session.setFunctionHooks(hooks);
+        session.setDeferredHooks(deferred);
 
         session.setOutput( root.getChildElements("output").get(0).getValue() );
 
@@ -293,7 +335,11 @@ public class SessionPersistenceUtil {
         
     }
 
-    private static Class getClazzFor(String type) throws ClassNotFoundException {
+    /*
+     * Types are looked up relative to the hooked class's loader, since
+     * that's the one its methods' signatures were resolved against.
+     */
+    private static Class getClazzFor(String type, ClassLoader loader) throws ClassNotFoundException {
         if ( "boolean".equals(type) ) {
             return boolean.class;
         } else if ( "byte".equals(type) ) {
@@ -314,6 +360,18 @@ public class SessionPersistenceUtil {
             return void.class;
         }
         
+        Class c = SnoopAgent.getAgentManager().findLoadedClass(type, loader);
+
+        if ( c != null ) {
+            return c;
+        }
+
+        if ( loader != null ) {
+            try {
+                return Class.forName(type, false, loader);
+            } catch (ClassNotFoundException e) { }
+        }
+
         return SnoopAgent.getAgentManager().getFromAllClasses(type);
     }
 